@@ -1,9 +1,19 @@
 package norswap.core.lexer;
 
+import java.util.Arrays;
+import java.util.concurrent.ForkJoinPool;
+
 import static norswap.utils.Util.cast;
 
 final class Clone
 {
+    // ---------------------------------------------------------------------------------------------
+
+    /** Arrays at least this long are cloned in parallel by {@link #clone(Tokens.Token[])}. */
+    static final int PARALLEL_THRESHOLD = 1 << 16;
+
+    // ---------------------------------------------------------------------------------------------
+
     /**
      * Implementation of {@link Tokens#clone(Tokens.Token)}.
      */
@@ -13,54 +23,65 @@ final class Clone
 
         Tokens.Token out;
 
-        /**/ if (token instanceof Tokens.Identifier) {
-            Tokens.Identifier tok = cast(token);
-            out = new Tokens.Identifier(tok.str);
-        }
-        else if (token instanceof Tokens.IntLiteral) {
-            Tokens.IntLiteral tok = cast(token);
-            out = new Tokens.IntLiteral(tok.value);
-        }
-        else if (token instanceof Tokens.StringLiteral) {
-            Tokens.StringLiteral tok = cast(token);
-            out = new Tokens.StringLiteral(tok.str);
-        }
-        else if (token instanceof Tokens.CharLiteral) {
-            Tokens.CharLiteral tok = cast(token);
-            out = new Tokens.CharLiteral(tok.str);
-        }
-        else if (token instanceof Tokens.Bracket) {
-            Tokens.Bracket tok = cast(token);
-            out = new Tokens.Bracket(tok.c);
-        }
-        else if (token instanceof Tokens.Operator) {
-            Tokens.Operator tok = cast(token);
-            out = new Tokens.Operator(tok.str);
-        }
-        else if (token instanceof Tokens.Spaces) {
-            Tokens.Spaces tok = cast(token);
-            out = new Tokens.Spaces(tok.count);
-        }
-        else if (token instanceof Tokens.Newline) {
-            out = new Tokens.Newline();
-        }
-        else if (token instanceof Tokens.Garbage) {
-            Tokens.Garbage tok = cast(token);
-            out = new Tokens.Garbage(tok.str);
-        }
-        else if (token instanceof Tokens.Comment) {
-            Tokens.Comment tok = cast(token);
-            out = new Tokens.Comment(tok.block, tok.align, tok.lines);
-        }
-        else if (token instanceof Tokens.EOF) {
-            out = new Tokens.EOF();
-        }
-        else {
-            throw new Error("unreachable");
+        switch (token.kind())
+        {
+            case IDENTIFIER:
+                out = new Tokens.Identifier(((Tokens.Identifier) token).str);
+                break;
+            case INT_LITERAL:
+                out = new Tokens.IntLiteral(((Tokens.IntLiteral) token).str);
+                break;
+            case STRING_LITERAL:
+                out = new Tokens.StringLiteral(((Tokens.StringLiteral) token).str);
+                break;
+            case CHAR_LITERAL:
+                out = new Tokens.CharLiteral(((Tokens.CharLiteral) token).str);
+                break;
+            case BRACKET:
+                out = new Tokens.Bracket(((Tokens.Bracket) token).c);
+                break;
+            case OPERATOR:
+                out = new Tokens.Operator(((Tokens.Operator) token).str);
+                break;
+            case SPACES:
+                out = new Tokens.Spaces(((Tokens.Spaces) token).count);
+                break;
+            case NEWLINE:
+                out = new Tokens.Newline();
+                break;
+            case GARBAGE:
+                out = new Tokens.Garbage(((Tokens.Garbage) token).str);
+                break;
+            case COMMENT:
+                out = ((Tokens.Comment) token).copy();
+                break;
+            case EOF:
+                out = new Tokens.EOF();
+                break;
+            default:
+                throw new Error("unreachable");
         }
 
         out.pos = token.pos;
         out.len = token.len;
         return cast(out);
     }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Implementation of {@link Tokens#clone(Tokens.Token[])}.
+     */
+    static Tokens.Token[] clone (Tokens.Token[] tokens)
+    {
+        Tokens.Token[] out = new Tokens.Token[tokens.length];
+        if (tokens.length >= PARALLEL_THRESHOLD && ForkJoinPool.getCommonPoolParallelism() > 1)
+            Arrays.parallelSetAll(out, i -> clone(tokens[i]));
+        else
+            for (int i = 0; i < out.length; ++ i)
+                out[i] = clone(tokens[i]);
+        return out;
+    }
+
+    // ---------------------------------------------------------------------------------------------
 }
@@ -0,0 +1,208 @@
+package norswap.core.lexer;
+
+import java.util.Arrays;
+
+/**
+ * A compact representation of the token stream returned by {@link Lexer#lex}.
+ * <p>
+ * Token positions are not stored in the tokens but in an {@code int[]} owned by this object.
+ * Tokens that carry no data besides their position ({@link Tokens.Newline}, {@link Tokens.EOF},
+ * {@link Tokens.Bracket} and short {@link Tokens.Spaces}) are represented by shared flyweight
+ * instances, so that only one reference and one int per token remain for these kinds.
+ * <p>
+ * As a consequence, the {@link Tokens.Token#pos} and {@link Tokens.Token#len} fields of the
+ * tokens returned by {@link #token(int)} are not set: use {@link #pos(int)} and {@link #len(int)}
+ * instead. The flyweights are never exposed: {@link #token(int)} returns a fresh copy of them.
+ * The other tokens are owned by this object and must not be mutated; {@link #to_array()} returns
+ * a mutable copy of the token stream in the usual representation.
+ */
+public final class CompactTokens implements TokenSequence
+{
+    // ---------------------------------------------------------------------------------------------
+
+    private static final Tokens.Newline NEWLINE = new Tokens.Newline();
+    private static final Tokens.EOF EOF = new Tokens.EOF();
+
+    /** Bracket flyweights, indexed by bracket character. */
+    private static final Tokens.Bracket[] BRACKETS = new Tokens.Bracket[128];
+
+    /** Flyweights for spaces tokens, indexed by their count. */
+    private static final Tokens.Spaces[] SPACES = new Tokens.Spaces[33];
+
+    static {
+        for (char c: "()[]{}".toCharArray())
+            BRACKETS[c] = new Tokens.Bracket(c);
+        for (int i = 1; i < SPACES.length; ++ i)
+            SPACES[i] = new Tokens.Spaces(i);
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /** The tokens, without positions. */
+    private final Tokens.Token[] tokens;
+
+    /**
+     * The start position of each token, followed by the end position of the last token (EOF).
+     * Tokens are contiguous, so the end of each token is the start of the next.
+     */
+    private final int[] positions;
+
+    // ---------------------------------------------------------------------------------------------
+
+    private CompactTokens (Tokens.Token[] tokens, int[] positions)
+    {
+        this.tokens = tokens;
+        this.positions = positions;
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Runs the scanner to completion, collecting the tokens.
+     */
+    static CompactTokens lex (Scanner scanner)
+    {
+        Tokens.Token[] tokens = new Tokens.Token[1024];
+        int[] positions = new int[1025];
+        int size = 0;
+
+        while (true) {
+            Tokens.Kind kind = scanner.next();
+
+            if (size == tokens.length) {
+                tokens = Arrays.copyOf(tokens, size * 2);
+                positions = Arrays.copyOf(positions, size * 2 + 1);
+            }
+
+            tokens[size] = flyweight_or_payload(scanner);
+            positions[size++] = scanner.start + scanner.offset;
+
+            if (kind == Tokens.Kind.EOF) {
+                positions[size] = scanner.end + scanner.offset;
+                break;
+            }
+        }
+
+        return new CompactTokens(
+            Arrays.copyOf(tokens, size),
+            Arrays.copyOf(positions, size + 1));
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    private static Tokens.Token flyweight_or_payload (Scanner scanner)
+    {
+        switch (scanner.kind) {
+            case NEWLINE:
+                return NEWLINE;
+            case EOF:
+                return EOF;
+            case BRACKET:
+                return BRACKETS[scanner.buf[scanner.start]];
+            case SPACES:
+                int count = scanner.end - scanner.start;
+                return count < SPACES.length ? SPACES[count] : Lexer.payload(scanner);
+            default:
+                return Lexer.payload(scanner);
+        }
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    @Override public int size()
+    {
+        return tokens.length;
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * {@inheritDoc}
+     * <p>
+     * Flyweights are copied, so that the returned token is never shared with other token streams.
+     */
+    @Override public Tokens.Token token (int i)
+    {
+        Tokens.Token token = tokens[i];
+        return flyweight(token) ? Tokens.clone(token) : token;
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    @Override public Tokens.Token copy (int i)
+    {
+        Tokens.Token token = Tokens.clone(tokens[i]);
+        token.pos = pos(i);
+        token.len = len(i);
+        return token;
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Returns the i-th token without copying it, even if it is a flyweight: its payload can be
+     * read, but it must neither be mutated nor escape.
+     */
+    Tokens.Token payload (int i)
+    {
+        return tokens[i];
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    private static boolean flyweight (Tokens.Token token)
+    {
+        switch (token.kind()) {
+            case NEWLINE:
+            case EOF:
+            case BRACKET:
+                return true;
+            case SPACES:
+                int count = ((Tokens.Spaces) token).count;
+                return count < SPACES.length && token == SPACES[count];
+            default:
+                return false;
+        }
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    @Override public Tokens.Kind kind (int i)
+    {
+        return tokens[i].kind();
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    @Override public int pos (int i)
+    {
+        return positions[i];
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    @Override public int len (int i)
+    {
+        return positions[i + 1] - positions[i];
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Whether the two sequences have the same token positions (and therefore the same size and
+     * token lengths).
+     */
+    boolean same_positions (CompactTokens other)
+    {
+        return Arrays.equals(positions, other.positions);
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    @Override public String toString()
+    {
+        return Arrays.toString(to_array());
+    }
+
+    // ---------------------------------------------------------------------------------------------
+}
@@ -0,0 +1,157 @@
+package norswap.core.lexer;
+
+import java.util.Arrays;
+import java.util.Spliterator;
+
+/**
+ * A copy-on-write view of a token stream (as returned by {@link Lexer#lex}): reading is free, and
+ * a token is only copied the first time it is obtained for mutation through {@link #mutable(int)}.
+ * This suits passes that mutate few tokens of a stream that must otherwise remain untouched.
+ * <p>
+ * The original stream must not be mutated while the view is in use. The view itself is not
+ * thread-safe if it is mutated.
+ */
+public final class CopyOnWriteTokens implements TokenSequence
+{
+    // ---------------------------------------------------------------------------------------------
+
+    /** The original tokens. */
+    private final Tokens.Token[] shared;
+
+    /** The current tokens: {@link #shared} until the first write, a private copy afterwards. */
+    private Tokens.Token[] current;
+
+    /** Whether each token of {@link #current} is owned by this view (lazily allocated). */
+    private boolean[] owned;
+
+    // ---------------------------------------------------------------------------------------------
+
+    CopyOnWriteTokens (Tokens.Token[] tokens)
+    {
+        this.shared = tokens;
+        this.current = tokens;
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    @Override public int size()
+    {
+        return current.length;
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * {@inheritDoc}
+     * <p>
+     * The token has its position set, but must not be mutated: use {@link #mutable(int)} instead.
+     */
+    @Override public Tokens.Token token (int i)
+    {
+        return current[i];
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    @Override public Tokens.Kind kind (int i)
+    {
+        return current[i].kind();
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    @Override public int pos (int i)
+    {
+        return current[i].pos;
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    @Override public int len (int i)
+    {
+        return current[i].len;
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    private void own_array()
+    {
+        if (owned != null) return;
+        current = shared.clone();
+        owned = new boolean[current.length];
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Returns the i-th token, which may be freely mutated: it is copied from the original stream
+     * on the first call for this index.
+     */
+    public Tokens.Token mutable (int i)
+    {
+        own_array();
+        if (!owned[i]) {
+            current[i] = Tokens.clone(current[i]);
+            owned[i] = true;
+        }
+        return current[i];
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Replaces the i-th token by {@code token}, which becomes owned by this view.
+     */
+    public void set (int i, Tokens.Token token)
+    {
+        own_array();
+        current[i] = token;
+        owned[i] = true;
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Number of tokens copied or replaced so far.
+     */
+    public int copies()
+    {
+        if (owned == null) return 0;
+        int count = 0;
+        for (boolean b: owned) if (b) ++ count;
+        return count;
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Returns the current token stream, whose unmodified tokens are shared with the original
+     * stream (and must not be mutated).
+     */
+    public Tokens.Token[] tokens()
+    {
+        return current.clone();
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * {@inheritDoc}
+     * <p>
+     * Unlike that of other sequences, the spliterator is not {@link Spliterator#IMMUTABLE
+     * IMMUTABLE}, as tokens can be replaced through {@link #set}.
+     */
+    @Override public Spliterator<Tokens.Token> spliterator()
+    {
+        return new SequenceSpliterator(this, 0, size(), false);
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    @Override public String toString()
+    {
+        return Arrays.toString(current);
+    }
+
+    // ---------------------------------------------------------------------------------------------
+}
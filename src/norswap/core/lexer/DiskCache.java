@@ -0,0 +1,342 @@
+package norswap.core.lexer;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileTime;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A persistent cache of lexed files, stored in a directory, so that unchanged files need not be
+ * lexed again across runs.
+ * <p>
+ * Entries are keyed by the absolute path of the lexed file, its size, its modification time and a
+ * hash of its content: if any of these change, the entry is ignored and replaced. The tokens are
+ * stored in a compact binary encoding that only records the kind and length of each token (the
+ * payloads are recovered from the file content), which is decoded from a single read of the entry.
+ * <p>
+ * The total size of the entries is bounded: when the bound is exceeded, the least recently used
+ * entries are deleted, down to {@link #EVICTION_TARGET} of the bound, so that the directory is not
+ * scanned again on each following store. Each use of an entry updates its modification time to
+ * that effect.
+ * <p>
+ * The cache can be used concurrently by multiple threads and processes (e.g. build workers)
+ * sharing the same directory: entries are written to a temporary file then atomically moved in
+ * place, and unreadable or malformed entries are treated as absent.
+ */
+public final class DiskCache
+{
+    // ---------------------------------------------------------------------------------------------
+
+    private static final int MAGIC = 0x434C4558; // "CLEX"
+    private static final int VERSION = 1;
+    private static final String SUFFIX = ".lex";
+
+    /** Fraction of the capacity that eviction brings the total size of the entries down to. */
+    private static final double EVICTION_TARGET = 0.9;
+
+    // ---------------------------------------------------------------------------------------------
+
+    private final Path directory;
+    private final long capacity;
+    private final Charset charset;
+
+    /** Estimate of the total size of the entries, refreshed each time eviction is attempted. */
+    private final AtomicLong total = new AtomicLong();
+
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong evictions = new AtomicLong();
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Creates a cache in {@code directory} (created if needed), whose entries are bounded to
+     * {@code capacity} bytes in total. Files are decoded using UTF-8.
+     */
+    public DiskCache (Path directory, long capacity) throws IOException
+    {
+        this(directory, capacity, StandardCharsets.UTF_8);
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Creates a cache in {@code directory} (created if needed), whose entries are bounded to
+     * {@code capacity} bytes in total. Files are decoded using {@code charset}.
+     */
+    public DiskCache (Path directory, long capacity, Charset charset) throws IOException
+    {
+        if (capacity <= 0)
+            throw new IllegalArgumentException("Capacity must be positive: " + capacity);
+        this.directory = Files.createDirectories(directory);
+        this.capacity = capacity;
+        this.charset = charset;
+        total.set(total_size(list_entries()));
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Returns the tokens of the file at {@code file} (as per {@link Lexer#lex(char[], int, int)}),
+     * loading them from the cache if possible, lexing the file and caching the result otherwise.
+     * <p>
+     * When loaded from the cache, only the kinds and positions of the tokens are decoded: tokens
+     * are materialized from the file content when accessed, and each access returns a fresh token.
+     */
+    public TokenSequence lex (Path file) throws IOException
+    {
+        file = file.toAbsolutePath();
+        BasicFileAttributes attrs = Files.readAttributes(file, BasicFileAttributes.class);
+        String path = file.toString();
+        long mtime = attrs.lastModifiedTime().toMillis();
+        Path entry = entry_path(path);
+
+        char[] src = new String(Files.readAllBytes(file), charset).toCharArray();
+        long hash = Hashing.hash(src, 0, src.length);
+
+        TokenSequence cached = load(entry, path, attrs.size(), mtime, hash, src);
+        if (cached != null) {
+            hits.incrementAndGet();
+            touch(entry);
+            return cached;
+        }
+
+        misses.incrementAndGet();
+        Tokens.Token[] tokens = Lexer.lex(src, 0, src.length);
+        byte[] encoded = store(entry, path, attrs.size(), mtime, hash, src.length, tokens);
+        return TokenCodec.decode(ByteBuffer.wrap(encoded), src, 0, 0);
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    private Path entry_path (String path)
+    {
+        return directory.resolve(String.format("%016x", Hashing.hash(path)) + SUFFIX);
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Returns the tokens stored in the given entry, or null if the entry doesn't exist, is not
+     * readable, or doesn't match the given key.
+     */
+    private static TokenSequence load (
+            Path entry, String path, long size, long mtime, long hash, char[] src)
+    {
+        ByteBuffer in;
+        try {
+            in = ByteBuffer.wrap(Files.readAllBytes(entry));
+        }
+        catch (IOException e) {
+            return null;
+        }
+
+        try {
+            if (in.getInt() != MAGIC || in.getInt() != VERSION)
+                return null;
+
+            byte[] path_bytes = new byte[in.getInt()];
+            in.get(path_bytes);
+
+            if (!path.equals(new String(path_bytes, StandardCharsets.UTF_8))
+                    || in.getLong() != size
+                    || in.getLong() != mtime
+                    || in.getLong() != hash
+                    || in.getInt() != src.length)
+                return null;
+
+            return TokenCodec.decode(in, src, 0, 0);
+        }
+        catch (RuntimeException e) {
+            // truncated or malformed entry
+            return null;
+        }
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Writes an entry for the given tokens, and returns their encoding.
+     */
+    private byte[] store (Path entry, String path, long size, long mtime, long hash, int chars,
+            Tokens.Token[] tokens)
+        throws IOException
+    {
+        byte[] path_bytes = path.getBytes(StandardCharsets.UTF_8);
+        ByteBuffer out = ByteBuffer.allocate(
+            40 + path_bytes.length + TokenCodec.max_size(tokens));
+
+        out.putInt(MAGIC);
+        out.putInt(VERSION);
+        out.putInt(path_bytes.length);
+        out.put(path_bytes);
+        out.putLong(size);
+        out.putLong(mtime);
+        out.putLong(hash);
+        out.putInt(chars);
+        int header = out.position();
+        TokenCodec.encode(tokens, out);
+        out.flip();
+        byte[] encoded = new byte[out.limit() - header];
+        System.arraycopy(out.array(), header, encoded, 0, encoded.length);
+
+        Path tmp = Files.createTempFile(directory, entry.getFileName().toString(), ".tmp");
+        try {
+            try (FileChannel channel = FileChannel.open(tmp, StandardOpenOption.WRITE)) {
+                while (out.hasRemaining()) channel.write(out);
+            }
+            long old = size_of(entry);
+            try {
+                Files.move(tmp, entry,
+                    StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+            }
+            catch (AtomicMoveNotSupportedException e) {
+                Files.move(tmp, entry, StandardCopyOption.REPLACE_EXISTING);
+            }
+            if (total.addAndGet(out.limit() - old) > capacity)
+                evict();
+            return encoded;
+        }
+        finally {
+            Files.deleteIfExists(tmp);
+        }
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    private static long size_of (Path file)
+    {
+        try {
+            return Files.size(file);
+        }
+        catch (IOException e) {
+            return 0;
+        }
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Marks the entry as recently used.
+     */
+    private static void touch (Path entry)
+    {
+        try {
+            Files.setLastModifiedTime(entry, FileTime.fromMillis(System.currentTimeMillis()));
+        }
+        catch (IOException e) {
+            // evicted concurrently: the entry will be recreated when needed
+        }
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    private static final class Entry
+    {
+        final Path path;
+        final long size;
+        final long time;
+
+        Entry (Path path, long size, long time) {
+            this.path = path;
+            this.size = size;
+            this.time = time;
+        }
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    private List<Entry> list_entries() throws IOException
+    {
+        List<Entry> entries = new ArrayList<>();
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(directory, "*" + SUFFIX)) {
+            for (Path path: stream) {
+                try {
+                    BasicFileAttributes attrs =
+                        Files.readAttributes(path, BasicFileAttributes.class);
+                    entries.add(new Entry(
+                        path, attrs.size(), attrs.lastModifiedTime().toMillis()));
+                }
+                catch (NoSuchFileException e) {
+                    // deleted concurrently
+                }
+            }
+        }
+        return entries;
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    private static long total_size (List<Entry> entries)
+    {
+        long total = 0;
+        for (Entry entry: entries) total += entry.size;
+        return total;
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Deletes the least recently used entries until the total size of the entries is within
+     * {@link #EVICTION_TARGET} of the capacity. Entries that cannot be deleted (e.g. because they
+     * are in use on platforms that prevent it) are skipped.
+     */
+    private synchronized void evict() throws IOException
+    {
+        List<Entry> entries = list_entries();
+        long size = total_size(entries);
+        if (size <= capacity) {
+            // already evicted by another thread or process
+            total.set(size);
+            return;
+        }
+
+        long target = (long) (capacity * EVICTION_TARGET);
+        entries.sort((a, b) -> Long.compare(a.time, b.time));
+
+        for (Entry entry: entries) {
+            if (size <= target) break;
+            try {
+                if (Files.deleteIfExists(entry.path)) evictions.incrementAndGet();
+                size -= entry.size;
+            }
+            catch (IOException e) {
+                // in use
+            }
+        }
+
+        total.set(size);
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /** Number of calls to {@link #lex} served from the cache. */
+    public long hits() {
+        return hits.get();
+    }
+
+    /** Number of calls to {@link #lex} that caused the file to be lexed. */
+    public long misses() {
+        return misses.get();
+    }
+
+    /** Number of entries deleted by this object to stay within capacity. */
+    public long evictions() {
+        return evictions.get();
+    }
+
+    // ---------------------------------------------------------------------------------------------
+}
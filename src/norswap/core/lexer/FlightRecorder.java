@@ -0,0 +1,160 @@
+package norswap.core.lexer;
+
+import java.lang.reflect.Constructor;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Forwards {@link Metrics} samples to the JDK Flight Recorder: an event is begun before each
+ * operation and ended after it, so that its duration is the duration of the operation.
+ * <p>
+ * The {@code jdk.jfr} API is missing from some Java 8 runtimes, so it is only accessed reflectively
+ * (the event types are defined with {@code jdk.jfr.EventFactory}), and only once {@link
+ * Metrics#enable_flight_recorder()} is called.
+ */
+final class FlightRecorder implements Metrics.Listener
+{
+    // ---------------------------------------------------------------------------------------------
+
+    /** The event fields (name and label), in the order of {@link #values}. */
+    private static final String[][] FIELDS = {
+        { "chars",              "Chars" },
+        { "tokens",             "Tokens" },
+        { "garbage_chars",      "Garbage Chars" },
+        { "identifiers",        "Identifiers" },
+        { "int_literals",       "Int Literals" },
+        { "string_literals",    "String Literals" },
+        { "char_literals",      "Char Literals" },
+        { "brackets",           "Brackets" },
+        { "operators",          "Operators" },
+        { "spaces",             "Spaces" },
+        { "newlines",           "Newlines" },
+        { "garbage",            "Garbage" },
+        { "comments",           "Comments" },
+    };
+
+    // ---------------------------------------------------------------------------------------------
+
+    /** One {@code jdk.jfr.EventFactory} per {@link Metrics.Operation}, by ordinal. */
+    private final Object[] factories;
+
+    private final Method new_event;
+    private final Method begin;
+    private final Method end;
+    private final Method should_commit;
+    private final Method set;
+    private final Method commit;
+
+    // ---------------------------------------------------------------------------------------------
+
+    FlightRecorder() throws ReflectiveOperationException
+    {
+        Class<?> factory    = Class.forName("jdk.jfr.EventFactory");
+        Class<?> event      = Class.forName("jdk.jfr.Event");
+        Class<?> element    = Class.forName("jdk.jfr.AnnotationElement");
+        Class<?> descriptor = Class.forName("jdk.jfr.ValueDescriptor");
+        Class<?> name       = Class.forName("jdk.jfr.Name");
+        Class<?> label      = Class.forName("jdk.jfr.Label");
+        Class<?> category   = Class.forName("jdk.jfr.Category");
+
+        Constructor<?> new_element    = element.getConstructor(Class.class, Object.class);
+        Constructor<?> new_descriptor =
+            descriptor.getConstructor(Class.class, String.class, List.class);
+
+        List<Object> fields = new ArrayList<>();
+        for (String[] field: FIELDS)
+            fields.add(new_descriptor.newInstance(int.class, field[0],
+                Collections.singletonList(new_element.newInstance(label, field[1]))));
+
+        Method create = factory.getMethod("create", List.class, List.class);
+        Metrics.Operation[] operations = Metrics.Operation.values();
+        factories = new Object[operations.length];
+
+        for (Metrics.Operation operation: operations) {
+            String title = operation.name().charAt(0)
+                + operation.name().substring(1).toLowerCase();
+            List<Object> annotations = Arrays.asList(
+                new_element.newInstance(name, "norswap.core.lexer." + title),
+                new_element.newInstance(label, title),
+                new_element.newInstance(category, new String[] { "core-lexer" }));
+            factories[operation.ordinal()] = create.invoke(null, annotations, fields);
+        }
+
+        new_event       = factory.getMethod("newEvent");
+        begin           = event.getMethod("begin");
+        end             = event.getMethod("end");
+        should_commit   = event.getMethod("shouldCommit");
+        set             = event.getMethod("set", int.class, Object.class);
+        commit          = event.getMethod("commit");
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    @Override public Object on_begin (Metrics.Operation operation)
+    {
+        Object event = call(new_event, factories[operation.ordinal()]);
+        call(begin, event);
+        return event;
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    @Override public void on_sample (Metrics.Sample sample, Object event)
+    {
+        call(end, event);
+        if (!(Boolean) call(should_commit, event)) return;
+
+        int[] values = values(sample);
+        for (int i = 0; i < values.length; ++ i)
+            call(set, event, i, values[i]);
+        call(commit, event);
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Returns the values of the event fields for the sample, in the order of {@link #FIELDS}.
+     */
+    private static int[] values (Metrics.Sample sample)
+    {
+        return new int[] {
+            sample.chars,
+            sample.tokens,
+            sample.garbage_chars,
+            sample.count(Tokens.Kind.IDENTIFIER),
+            sample.count(Tokens.Kind.INT_LITERAL),
+            sample.count(Tokens.Kind.STRING_LITERAL),
+            sample.count(Tokens.Kind.CHAR_LITERAL),
+            sample.count(Tokens.Kind.BRACKET),
+            sample.count(Tokens.Kind.OPERATOR),
+            sample.count(Tokens.Kind.SPACES),
+            sample.count(Tokens.Kind.NEWLINE),
+            sample.count(Tokens.Kind.GARBAGE),
+            sample.count(Tokens.Kind.COMMENT),
+        };
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    private static Object call (Method method, Object target, Object... args)
+    {
+        try {
+            return method.invoke(target, args);
+        }
+        catch (InvocationTargetException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof RuntimeException) throw (RuntimeException) cause;
+            if (cause instanceof Error) throw (Error) cause;
+            throw new IllegalStateException(cause);
+        }
+        catch (IllegalAccessException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    // ---------------------------------------------------------------------------------------------
+}
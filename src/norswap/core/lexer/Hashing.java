@@ -0,0 +1,80 @@
+package norswap.core.lexer;
+
+/**
+ * Fast non-cryptographic hash functions used to key caches.
+ */
+final class Hashing
+{
+    // ---------------------------------------------------------------------------------------------
+
+    private static final long K = 0x9E3779B97F4A7C15L;
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Finalization step (from SplitMix64): spreads the entropy of {@code h} over all bits.
+     */
+    static long mix (long h)
+    {
+        h = (h ^ (h >>> 30)) * 0xBF58476D1CE4E5B9L;
+        h = (h ^ (h >>> 27)) * 0x94D049BB133111EBL;
+        return h ^ (h >>> 31);
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Returns a 64-bit hash of the characters of {@code str}. Characters are consumed four at a
+     * time, packed in a long, so that the dependency chain has one multiplication per four chars.
+     */
+    static long hash (CharSequence str)
+    {
+        int len = str.length();
+        long h = len * K;
+        int i = 0;
+
+        for (; i + 4 <= len; i += 4) {
+            long w = str.charAt(i)
+                | (long) str.charAt(i + 1) << 16
+                | (long) str.charAt(i + 2) << 32
+                | (long) str.charAt(i + 3) << 48;
+            h = (h ^ w) * K;
+            h ^= h >>> 29;
+        }
+
+        long w = 0;
+        for (int shift = 0; i < len; ++ i, shift += 16)
+            w |= (long) str.charAt(i) << shift;
+
+        return mix(h ^ w);
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Same as {@link #hash(CharSequence)} for the characters in {@code array[start:end]}.
+     */
+    static long hash (char[] array, int start, int end)
+    {
+        int len = end - start;
+        long h = len * K;
+        int i = start;
+
+        for (; i + 4 <= end; i += 4) {
+            long w = array[i]
+                | (long) array[i + 1] << 16
+                | (long) array[i + 2] << 32
+                | (long) array[i + 3] << 48;
+            h = (h ^ w) * K;
+            h ^= h >>> 29;
+        }
+
+        long w = 0;
+        for (int shift = 0; i < end; ++ i, shift += 16)
+            w |= (long) array[i] << shift;
+
+        return mix(h ^ w);
+    }
+
+    // ---------------------------------------------------------------------------------------------
+}
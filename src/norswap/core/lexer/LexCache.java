@@ -0,0 +1,249 @@
+package norswap.core.lexer;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+
+/**
+ * A thread-safe cache of {@link Lexer#lex} results, keyed by a hash of the input.
+ * <p>
+ * The cache is bounded by an estimate of the memory retained by its entries (the cached input and
+ * its tokens). When that bound is exceeded, the least recently used entries are evicted.
+ * <p>
+ * Concurrent requests for the same input are coalesced: only one thread lexes the input, the
+ * others wait for its result.
+ * <p>
+ * The returned {@link LexResult}s are immutable, and can therefore be shared between all callers
+ * without copying. Tokens obtained from them are fresh copies owned by the caller.
+ */
+public final class LexCache
+{
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Estimated size (in bytes) of a token in a {@link LexResult}: its array slots and its share
+     * of the payload objects.
+     */
+    private static final int TOKEN_BYTES = 32;
+
+    // ---------------------------------------------------------------------------------------------
+
+    private static final class Key
+    {
+        final long hash;
+        final int length;
+
+        Key (long hash, int length) {
+            this.hash = hash;
+            this.length = length;
+        }
+
+        @Override public boolean equals (Object o) {
+            if (!(o instanceof Key)) return false;
+            Key k = (Key) o;
+            return hash == k.hash && length == k.length;
+        }
+
+        @Override public int hashCode() {
+            return (int) (hash ^ (hash >>> 32));
+        }
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    private static final class Entry
+    {
+        final String code;
+        final LexResult tokens;
+        final long weight;
+
+        Entry (String code, LexResult tokens) {
+            this.code = code;
+            this.tokens = tokens;
+            this.weight = 2L * code.length() + (long) TOKEN_BYTES * tokens.size();
+        }
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    private final long capacity;
+
+    /** Access-ordered, guarded by itself. */
+    private final LinkedHashMap<Key, Entry> entries = new LinkedHashMap<>(64, 0.75f, true);
+
+    /** Lexing tasks in progress, used to coalesce concurrent requests for the same input. */
+    private final ConcurrentHashMap<Key, FutureTask<Entry>> pending = new ConcurrentHashMap<>();
+
+    // The following fields are guarded by {@link #entries}.
+    private long weight;
+    private long hits;
+    private long misses;
+    private long evictions;
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Creates a cache that retains at most (approximately) {@code capacity} bytes worth of inputs
+     * and tokens.
+     */
+    public LexCache (long capacity)
+    {
+        if (capacity <= 0)
+            throw new IllegalArgumentException("Capacity must be positive: " + capacity);
+        this.capacity = capacity;
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Returns the result of {@code Lexer.lex_result(code)}, lexing it only if the result isn't
+     * cached or being computed by another thread.
+     */
+    public LexResult lex (String code)
+    {
+        Key key = new Key(Hashing.hash(code), code.length());
+
+        Entry entry = lookup(key, code);
+        if (entry != null) return entry.tokens;
+
+        FutureTask<Entry> task = new FutureTask<>(() -> new Entry(code, Lexer.lex_result(code)));
+        FutureTask<Entry> other = pending.putIfAbsent(key, task);
+
+        if (other != null) {
+            entry = await(other);
+            if (entry.code.equals(code)) {
+                synchronized (entries) { ++ hits; }
+                return entry.tokens;
+            }
+            // hash collision with an input being lexed concurrently: don't cache
+            synchronized (entries) { ++ misses; }
+            return Lexer.lex_result(code);
+        }
+
+        try {
+            // the entry may have been inserted between the lookup and the registration of the task
+            entry = lookup(key, code);
+            if (entry != null) return entry.tokens;
+            task.run();
+            entry = await(task);
+            insert(key, entry);
+            return entry.tokens;
+        }
+        finally {
+            pending.remove(key, task);
+        }
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Returns the cached entry for {@code code}, or null. Counts the hit, but not the miss.
+     */
+    private Entry lookup (Key key, String code)
+    {
+        Entry entry;
+        synchronized (entries) {
+            entry = entries.get(key);
+        }
+        if (entry == null || !entry.code.equals(code))
+            return null;
+        synchronized (entries) {
+            ++ hits;
+        }
+        return entry;
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    private void insert (Key key, Entry entry)
+    {
+        synchronized (entries)
+        {
+            ++ misses;
+            if (entry.weight > capacity) return;
+
+            Entry old = entries.put(key, entry);
+            if (old != null) weight -= old.weight;
+            weight += entry.weight;
+
+            Iterator<Map.Entry<Key, Entry>> it = entries.entrySet().iterator();
+            while (weight > capacity) {
+                Entry eldest = it.next().getValue();
+                it.remove();
+                weight -= eldest.weight;
+                ++ evictions;
+            }
+        }
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    private static Entry await (FutureTask<Entry> task)
+    {
+        boolean interrupted = false;
+        try {
+            while (true) {
+                try {
+                    return task.get();
+                }
+                catch (InterruptedException e) {
+                    interrupted = true;
+                }
+                catch (ExecutionException e) {
+                    Throwable cause = e.getCause();
+                    if (cause instanceof RuntimeException) throw (RuntimeException) cause;
+                    if (cause instanceof Error) throw (Error) cause;
+                    throw new RuntimeException(cause);
+                }
+            }
+        }
+        finally {
+            if (interrupted) Thread.currentThread().interrupt();
+        }
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Removes all entries from the cache. Does not reset the statistics.
+     */
+    public void clear()
+    {
+        synchronized (entries) {
+            entries.clear();
+            weight = 0;
+        }
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /** Number of requests that were served without lexing. */
+    public long hits() {
+        synchronized (entries) { return hits; }
+    }
+
+    /** Number of requests that caused the input to be lexed. */
+    public long misses() {
+        synchronized (entries) { return misses; }
+    }
+
+    /** Number of entries that were evicted to make room for newer entries. */
+    public long evictions() {
+        synchronized (entries) { return evictions; }
+    }
+
+    /** Number of entries currently in the cache. */
+    public int size() {
+        synchronized (entries) { return entries.size(); }
+    }
+
+    /** Estimated size (in bytes) of the inputs and tokens currently retained by the cache. */
+    public long weight() {
+        synchronized (entries) { return weight; }
+    }
+
+    // ---------------------------------------------------------------------------------------------
+}
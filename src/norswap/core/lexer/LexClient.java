@@ -0,0 +1,258 @@
+package norswap.core.lexer;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * A client for {@link LexServer}, which falls back to lexing in-process when the server is not
+ * running or fails.
+ * <p>
+ * The connection is opened on first use and kept open across batches. After a failure, the next
+ * batch tries to connect again.
+ * <p>
+ * The inputs of a batch are pipelined: a writer thread sends them one after the other, while the
+ * calling thread reads the replies, which the server streams in order as it lexes each input. A
+ * batch therefore costs a single round trip, not one per input.
+ * <p>
+ * Instances are thread-safe, but serialize their batches.
+ */
+public final class LexClient implements AutoCloseable
+{
+    // ---------------------------------------------------------------------------------------------
+
+    /** Timeout (in milliseconds) for connecting to the server. */
+    private static final int CONNECT_TIMEOUT = 200;
+
+    /** Timeout (in milliseconds) for each read from the server, after which we lex in-process. */
+    private static final int READ_TIMEOUT = 60_000;
+
+    // ---------------------------------------------------------------------------------------------
+
+    private final int port;
+
+    private Socket socket;
+    private DataInputStream in;
+    private DataOutputStream out;
+
+    /** Sends the inputs of the batches, created on first use. */
+    private ExecutorService writer;
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Creates a client for a server on the given port of the loopback interface.
+     */
+    public LexClient (int port)
+    {
+        this.port = port;
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Creates a client for a server on {@link LexServer#DEFAULT_PORT}.
+     */
+    public LexClient()
+    {
+        this(LexServer.DEFAULT_PORT);
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Returns the tokens of each input (which must be nul-terminated, see
+     * {@link Lexer#lex(String)}), lexed by the server if possible, or in-process otherwise.
+     * <p>
+     * The payloads of tokens lexed by the server are recovered from the inputs when accessed.
+     * Batches over the server limits ({@link LexServer#MAX_BATCH_SIZE}, {@link
+     * LexServer#MAX_INPUT_LENGTH}) are lexed in-process.
+     */
+    public synchronized TokenSequence[] lex (String... codes)
+    {
+        if (fits(codes)) {
+            try {
+                return remote(codes);
+            }
+            catch (IOException | IllegalArgumentException e) {
+                disconnect();
+            }
+        }
+
+        TokenSequence[] results = new TokenSequence[codes.length];
+        for (int i = 0; i < codes.length; ++ i)
+            results[i] = Lexer.lex_result(codes[i]);
+        return results;
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Whether the client is currently connected to a server.
+     */
+    public synchronized boolean connected() {
+        return socket != null;
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    private TokenSequence[] remote (String[] codes) throws IOException
+    {
+        if (socket == null) connect();
+        if (writer == null) {
+            writer = Executors.newSingleThreadExecutor(task -> {
+                Thread thread = new Thread(task, "lex-client-writer");
+                thread.setDaemon(true);
+                return thread;
+            });
+        }
+
+        DataOutputStream out = this.out;
+        Future<?> sent = writer.submit(() -> {
+            send(out, codes);
+            return null;
+        });
+
+        // on failure, the caller closes the socket, which also unblocks the writer
+        TokenSequence[] results = new TokenSequence[codes.length];
+        for (int i = 0; i < codes.length; ++ i) {
+            int size = in.readInt();
+            if (size < 0)
+                throw new IOException("invalid encoding size: " + size);
+            byte[] encoded = new byte[size];
+            in.readFully(encoded);
+            results[i] = TokenCodec.decode(
+                ByteBuffer.wrap(encoded), codes[i].toCharArray(), 0, 0);
+        }
+
+        await(sent);
+        return results;
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Sends a batch, without waiting for the replies.
+     */
+    private static void send (DataOutputStream out, String[] codes) throws IOException
+    {
+        out.writeInt(LexServer.MAGIC);
+        out.writeInt(codes.length);
+
+        for (String code: codes) {
+            ByteBuffer bytes = ByteBuffer.allocate(code.length() * 2);
+            bytes.asCharBuffer().put(code);
+            out.writeInt(code.length());
+            out.write(bytes.array());
+        }
+
+        out.flush();
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Waits for the writer to be done with a batch, rethrowing its failure.
+     */
+    private static void await (Future<?> sent) throws IOException
+    {
+        boolean interrupted = false;
+        try {
+            while (true) {
+                try {
+                    sent.get();
+                    return;
+                }
+                catch (InterruptedException e) {
+                    interrupted = true;
+                }
+                catch (ExecutionException e) {
+                    Throwable cause = e.getCause();
+                    if (cause instanceof IOException) throw (IOException) cause;
+                    if (cause instanceof RuntimeException) throw (RuntimeException) cause;
+                    if (cause instanceof Error) throw (Error) cause;
+                    throw new IOException(cause);
+                }
+            }
+        }
+        finally {
+            if (interrupted) Thread.currentThread().interrupt();
+        }
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Whether the batch is within the limits of the server protocol.
+     */
+    private static boolean fits (String[] codes)
+    {
+        if (codes.length > LexServer.MAX_BATCH_SIZE) return false;
+        for (String code: codes)
+            if (code.length() > LexServer.MAX_INPUT_LENGTH) return false;
+        return true;
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    private void connect() throws IOException
+    {
+        Socket socket = new Socket();
+        try {
+            socket.connect(
+                new InetSocketAddress(InetAddress.getLoopbackAddress(), port), CONNECT_TIMEOUT);
+            socket.setTcpNoDelay(true);
+            socket.setSoTimeout(READ_TIMEOUT);
+            in = new DataInputStream(new BufferedInputStream(socket.getInputStream(), 1 << 16));
+            out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream(), 1 << 16));
+        }
+        catch (IOException e) {
+            socket.close();
+            throw e;
+        }
+        this.socket = socket;
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    private void disconnect()
+    {
+        if (socket == null) return;
+        try {
+            socket.close();
+        }
+        catch (IOException e) {
+            // nothing to do
+        }
+        socket = null;
+        in = null;
+        out = null;
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Closes the connection to the server (if any) and stops the writer thread. The client can
+     * still be used afterwards.
+     */
+    @Override public synchronized void close()
+    {
+        disconnect();
+        if (writer != null) {
+            writer.shutdown();
+            writer = null;
+        }
+    }
+
+    // ---------------------------------------------------------------------------------------------
+}
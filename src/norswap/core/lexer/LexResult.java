@@ -0,0 +1,560 @@
+package norswap.core.lexer;
+
+import java.math.BigInteger;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Objects;
+
+/**
+ * An immutable token stream, which can be shared between threads and cached without copying.
+ * <p>
+ * Unlike {@link Tokens.Token} objects, whose fields are public and mutable, a lex result only
+ * exposes read-only accessors indexed by token. Its state is held in final fields and never
+ * escapes, so that it can be safely published to other threads through a data race.
+ * <p>
+ * {@link #token(int)} materializes a fresh token, which the caller owns. Use a {@link Builder} to
+ * derive an edited stream (see {@link #to_builder()}).
+ */
+public final class LexResult implements TokenSequence
+{
+    // ---------------------------------------------------------------------------------------------
+
+    private final int size;
+    private final byte[] kinds;
+    private final int[] positions;
+    private final int[] lengths;
+
+    /**
+     * Integer payload: bracket character, spaces count, or comment alignment
+     * shifted left by one, with the low bit set for block comments.
+     */
+    private final int[] ints;
+
+    /**
+     * String payload, String[] comment lines, {@link CommentSpan} for comments not split yet, or
+     * Integer line count for comments whose content was skipped.
+     */
+    private final Object[] objects;
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * The span of a comment in an immutable input, from which its lines are split on demand.
+     */
+    private static final class CommentSpan
+    {
+        final String src;
+        final int start, end;
+        final int lines;
+
+        CommentSpan (String src, int start, int end, int lines) {
+            this.src = src;
+            this.start = start;
+            this.end = end;
+            this.lines = lines;
+        }
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    private LexResult (
+            int size, byte[] kinds, int[] positions, int[] lengths, int[] ints, Object[] objects)
+    {
+        this.size = size;
+        this.kinds = kinds;
+        this.positions = positions;
+        this.lengths = lengths;
+        this.ints = ints;
+        this.objects = objects;
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Runs the scanner to completion, collecting the tokens without materializing token objects.
+     */
+    static LexResult lex (Scanner scanner)
+    {
+        Builder builder = new Builder(1024);
+
+        while (true) {
+            Tokens.Kind kind = scanner.next();
+            int i = builder.grow();
+            builder.kinds[i] = (byte) kind.ordinal();
+            builder.positions[i] = scanner.start + scanner.offset;
+            builder.lengths[i] = scanner.end - scanner.start;
+
+            switch (kind) {
+                case IDENTIFIER:
+                case INT_LITERAL:
+                case OPERATOR:
+                case GARBAGE:
+                    builder.objects[i] = new String(scanner.buf, scanner.start,
+                        scanner.end - scanner.start);
+                    break;
+                case STRING_LITERAL:
+                case CHAR_LITERAL:
+                    builder.objects[i] = new String(scanner.buf, scanner.start + 1,
+                        scanner.end - scanner.start - 2);
+                    break;
+                case BRACKET:
+                    builder.ints[i] = scanner.buf[scanner.start];
+                    break;
+                case SPACES:
+                    builder.ints[i] = scanner.end - scanner.start;
+                    break;
+                case COMMENT:
+                    int start = scanner.start + scanner.base;
+                    int end = scanner.end + scanner.base;
+                    // only strings can't be modified after lexing, other inputs are split now
+                    builder.objects[i] = scanner.source instanceof String
+                        ? new CommentSpan((String) scanner.source, start, end, scanner.lines)
+                        : Tokens.Comment.split(scanner.source, start, end,
+                            scanner.align, scanner.lines);
+                    builder.ints[i] = scanner.align << 1 | (scanner.block ? 1 : 0);
+                    break;
+                case EOF:
+                    return builder.build();
+                default:
+            }
+        }
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Returns an immutable copy of the given token stream. Tokens without a position
+     * ({@code pos == -1}) keep it unset.
+     */
+    public static LexResult of (Tokens.Token[] tokens)
+    {
+        Builder builder = new Builder(tokens.length);
+        for (Tokens.Token token: tokens) builder.add(token);
+        return builder.build();
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Returns a new empty builder.
+     */
+    public static Builder builder()
+    {
+        return new Builder(16);
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Returns a new builder initialized with the tokens of this result (a bulk array copy).
+     */
+    public Builder to_builder()
+    {
+        Builder builder = new Builder(Math.max(size, 16));
+        builder.add(this, 0, size);
+        return builder;
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    @Override public int size()
+    {
+        return size;
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    private void check (int i)
+    {
+        if (i < 0 || i >= size)
+            throw new IndexOutOfBoundsException("index " + i + ", size " + size);
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    @Override public Tokens.Kind kind (int i)
+    {
+        check(i);
+        return Tokens.Kind.VALUES[kinds[i]];
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    @Override public int pos (int i)
+    {
+        check(i);
+        return positions[i];
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    @Override public int len (int i)
+    {
+        check(i);
+        return lengths[i];
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    private void expect (int i, Tokens.Kind kind)
+    {
+        if (kind(i) != kind)
+            throw new IllegalArgumentException("token " + i + " is " + kind(i) + ", not " + kind);
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Returns the text of the i-th token if it is an identifier, int literal, operator or garbage,
+     * or its content (without quotes or unescaping) if it is a string or char literal; null
+     * otherwise.
+     */
+    public String text (int i)
+    {
+        check(i);
+        Object object = objects[i];
+        return object instanceof String ? (String) object : null;
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Returns the value of the i-th token, which must be an int literal.
+     * @throws ArithmeticException if the value does not fit in an int
+     */
+    public int int_value (int i)
+    {
+        return Math.toIntExact(long_value(i));
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Returns the value of the i-th token, which must be an int literal.
+     * @throws ArithmeticException if the value does not fit in a long
+     */
+    public long long_value (int i)
+    {
+        expect(i, Tokens.Kind.INT_LITERAL);
+        return Tokens.IntLiteral.parse((String) objects[i]);
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Returns the value of the i-th token, which must be an int literal.
+     */
+    public BigInteger big_value (int i)
+    {
+        expect(i, Tokens.Kind.INT_LITERAL);
+        return Tokens.IntLiteral.big((String) objects[i]);
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Returns the character of the i-th token, which must be a bracket.
+     */
+    public char bracket (int i)
+    {
+        expect(i, Tokens.Kind.BRACKET);
+        return (char) ints[i];
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Returns the number of spaces of the i-th token, which must be a spaces token.
+     */
+    public int spaces (int i)
+    {
+        expect(i, Tokens.Kind.SPACES);
+        return ints[i];
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Whether the i-th token, which must be a comment, is a block comment.
+     */
+    public boolean comment_block (int i)
+    {
+        expect(i, Tokens.Kind.COMMENT);
+        return (ints[i] & 1) != 0;
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Returns the alignment of the i-th token, which must be a comment.
+     */
+    public int comment_align (int i)
+    {
+        expect(i, Tokens.Kind.COMMENT);
+        return ints[i] >>> 1;
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Returns an unmodifiable view of the lines of the i-th token, which must be a comment, or
+     * null if the content of the comment was skipped. The lines of comments lexed from a string
+     * are split from it on each call.
+     */
+    public List<String> comment_lines (int i)
+    {
+        expect(i, Tokens.Kind.COMMENT);
+        String[] lines = comment(i).lines();
+        return lines == null ? null : Collections.unmodifiableList(Arrays.asList(lines));
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Returns a comment token for the i-th token, which must be a comment, without setting its
+     * position. The token shares the stored lines (if any), which must not be mutated.
+     */
+    private Tokens.Comment comment (int i)
+    {
+        Object object = objects[i];
+        boolean block = (ints[i] & 1) != 0;
+        int align = ints[i] >>> 1;
+
+        if (object instanceof String[])
+            return new Tokens.Comment(block, align, (String[]) object);
+        if (object instanceof CommentSpan) {
+            CommentSpan span = (CommentSpan) object;
+            return new Tokens.Comment(block, align, span.lines, span.src, span.start, span.end);
+        }
+        return new Tokens.Comment(block, align, (Integer) object, null, 0, 0);
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * {@inheritDoc}
+     * <p>
+     * The token is materialized on each call, has its position set, and is owned by the caller.
+     */
+    @Override public Tokens.Token token (int i)
+    {
+        Tokens.Token token;
+
+        switch (kind(i))
+        {
+            case IDENTIFIER:     token = new Tokens.Identifier((String) objects[i]); break;
+            case INT_LITERAL:    token = new Tokens.IntLiteral((String) objects[i]); break;
+            case STRING_LITERAL: token = new Tokens.StringLiteral((String) objects[i]); break;
+            case CHAR_LITERAL:   token = new Tokens.CharLiteral((String) objects[i]); break;
+            case BRACKET:        token = new Tokens.Bracket((char) ints[i]); break;
+            case OPERATOR:       token = new Tokens.Operator((String) objects[i]); break;
+            case SPACES:         token = new Tokens.Spaces(ints[i]); break;
+            case NEWLINE:        token = new Tokens.Newline(); break;
+            case GARBAGE:        token = new Tokens.Garbage((String) objects[i]); break;
+            case COMMENT:
+                token = objects[i] instanceof String[]
+                    ? new Tokens.Comment((ints[i] & 1) != 0, ints[i] >>> 1,
+                        ((String[]) objects[i]).clone())
+                    : comment(i);
+                break;
+            case EOF:            token = new Tokens.EOF(); break;
+            default:             throw new Error("unreachable");
+        }
+
+        token.pos = positions[i];
+        token.len = lengths[i];
+        return token;
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Same as {@link #token(int)}, as the returned token is already a fresh copy.
+     */
+    @Override public Tokens.Token copy (int i)
+    {
+        return token(i);
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Whether the i-th token has the same payload as the j-th token of {@code other}, which has
+     * the same kind (see {@link Tokens#equals(TokenSequence, TokenSequence, boolean)}). Compares
+     * the stored payloads, without materializing tokens.
+     */
+    boolean same_payload (int i, LexResult other, int j)
+    {
+        if (ints[i] != other.ints[j]) return false;
+        return kinds[i] == Tokens.Kind.COMMENT.ordinal()
+            ? comment(i).same_payload(other.comment(j))
+            : Objects.equals(objects[i], other.objects[j]);
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Hash of the kind and payload of the i-th token, equal to the payload hash of {@link
+     * #token(int)}, computed without materializing the token.
+     */
+    int payload_hash (int i)
+    {
+        Tokens.Kind kind = kind(i);
+        switch (kind)
+        {
+            case BRACKET:
+            case SPACES:
+                return 31 * kind.ordinal() + ints[i];
+            case NEWLINE:
+            case EOF:
+                return kind.ordinal();
+            case COMMENT:
+                return comment(i).payload_hash();
+            default:
+                return 31 * kind.ordinal() + Objects.hashCode(objects[i]);
+        }
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    @Override public String toString()
+    {
+        return Arrays.toString(to_array());
+    }
+
+    // =============================================================================================
+
+    /**
+     * Builds a {@link LexResult} by appending and replacing tokens. Token objects passed to the
+     * builder are copied, so they can be reused or mutated afterwards.
+     * <p>
+     * Building copies the builder's arrays, so that the builder can still be used afterwards.
+     */
+    public static final class Builder
+    {
+        private int size;
+        private byte[] kinds;
+        private int[] positions;
+        private int[] lengths;
+        private int[] ints;
+        private Object[] objects;
+
+        Builder (int capacity)
+        {
+            kinds = new byte[capacity];
+            positions = new int[capacity];
+            lengths = new int[capacity];
+            ints = new int[capacity];
+            objects = new Object[capacity];
+        }
+
+        /** Returns the number of tokens added so far. */
+        public int size()
+        {
+            return size;
+        }
+
+        /** Ensures there is room for {@code n} more tokens. */
+        private void reserve (int n)
+        {
+            if (size + n <= kinds.length) return;
+            int capacity = Math.max(size + n, kinds.length * 2);
+            kinds = Arrays.copyOf(kinds, capacity);
+            positions = Arrays.copyOf(positions, capacity);
+            lengths = Arrays.copyOf(lengths, capacity);
+            ints = Arrays.copyOf(ints, capacity);
+            objects = Arrays.copyOf(objects, capacity);
+        }
+
+        /** Adds an uninitialized slot and returns its index. */
+        int grow()
+        {
+            reserve(1);
+            ints[size] = 0;
+            objects[size] = null;
+            return size++;
+        }
+
+        /** Appends a copy of {@code token}. */
+        public Builder add (Tokens.Token token)
+        {
+            set(grow(), token);
+            return this;
+        }
+
+        /** Appends the tokens in [{@code from}, {@code to}) of {@code result}. */
+        public Builder add (LexResult result, int from, int to)
+        {
+            if (from < 0 || to < from || to > result.size)
+                throw new IndexOutOfBoundsException(
+                    "range [" + from + ", " + to + ") of result of size " + result.size);
+            int n = to - from;
+            reserve(n);
+            System.arraycopy(result.kinds,     from, kinds,     size, n);
+            System.arraycopy(result.positions, from, positions, size, n);
+            System.arraycopy(result.lengths,   from, lengths,   size, n);
+            System.arraycopy(result.ints,      from, ints,      size, n);
+            System.arraycopy(result.objects,   from, objects,   size, n);
+            size += n;
+            return this;
+        }
+
+        /** Replaces the i-th token by a copy of {@code token}. */
+        public Builder set (int i, Tokens.Token token)
+        {
+            if (i < 0 || i >= size)
+                throw new IndexOutOfBoundsException("index " + i + ", size " + size);
+
+            kinds[i] = (byte) token.kind().ordinal();
+            positions[i] = token.pos;
+            lengths[i] = token.len;
+            ints[i] = 0;
+            objects[i] = null;
+
+            switch (token.kind())
+            {
+                case IDENTIFIER:     objects[i] = ((Tokens.Identifier) token).str; break;
+                case INT_LITERAL:    objects[i] = ((Tokens.IntLiteral) token).str; break;
+                case STRING_LITERAL: objects[i] = ((Tokens.StringLiteral) token).str; break;
+                case CHAR_LITERAL:   objects[i] = ((Tokens.CharLiteral) token).str; break;
+                case BRACKET:        ints[i] = ((Tokens.Bracket) token).c; break;
+                case OPERATOR:       objects[i] = ((Tokens.Operator) token).str; break;
+                case SPACES:         ints[i] = ((Tokens.Spaces) token).count; break;
+                case GARBAGE:        objects[i] = ((Tokens.Garbage) token).str; break;
+                case COMMENT:
+                    Tokens.Comment comment = (Tokens.Comment) token;
+                    objects[i] = comment.skipped()
+                        ? (Object) comment.line_count()
+                        : comment.lines().clone();
+                    ints[i] = comment.align << 1 | (comment.block ? 1 : 0);
+                    break;
+                default:
+            }
+            return this;
+        }
+
+        /** Removes the tokens from index {@code size} onwards. */
+        public Builder truncate (int size)
+        {
+            if (size < 0 || size > this.size)
+                throw new IndexOutOfBoundsException("size " + size + ", current " + this.size);
+            Arrays.fill(objects, size, this.size, null);
+            this.size = size;
+            return this;
+        }
+
+        /** Returns an immutable result holding the tokens added so far. */
+        public LexResult build()
+        {
+            return new LexResult(size,
+                Arrays.copyOf(kinds, size),
+                Arrays.copyOf(positions, size),
+                Arrays.copyOf(lengths, size),
+                Arrays.copyOf(ints, size),
+                Arrays.copyOf(objects, size));
+        }
+    }
+
+    // ---------------------------------------------------------------------------------------------
+}
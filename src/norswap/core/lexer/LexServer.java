@@ -0,0 +1,242 @@
+package norswap.core.lexer;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * A long-running lexing server, so that short-lived processes (e.g. build workers) can lex their
+ * inputs with a warm JIT and a shared {@link LexCache}, through {@link LexClient}.
+ * <p>
+ * The server listens on a localhost TCP port, and serves each connection on its own thread. A
+ * connection carries any number of batches, each answered before the next is read.
+ * <p>
+ * A batch starts with {@link #MAGIC} and the number of inputs (at most {@link #MAX_BATCH_SIZE}).
+ * Then for each input in turn, the client sends its number of chars (at most {@link
+ * #MAX_INPUT_LENGTH}) followed by the chars (UTF-16), and the server answers with the size of its
+ * token encoding followed by the encoding (see {@link TokenCodec}). The inputs must be
+ * nul-terminated (see {@link Lexer#lex(String)}). All numbers are big-endian 32-bit ints.
+ * <p>
+ * Inputs are read and answered one at a time, so that the memory held for a connection is bounded
+ * by its largest input. Clients may send the next inputs without waiting for the replies: the
+ * replies are streamed in order, and TCP flow control holds back the inputs that are not read yet.
+ * Malformed requests and invalid inputs close the connection.
+ */
+public final class LexServer implements AutoCloseable
+{
+    // ---------------------------------------------------------------------------------------------
+
+    static final int MAGIC = 0x434C5844; // "CLXD"
+
+    /** The port used by {@link #main} and {@link LexClient#LexClient()}. */
+    public static final int DEFAULT_PORT = 7311;
+
+    /** The cache capacity (in bytes) used by {@link #main}. */
+    public static final long DEFAULT_CACHE_CAPACITY = 256L << 20;
+
+    /** Maximum number of inputs in a batch. */
+    public static final int MAX_BATCH_SIZE = 1 << 16;
+
+    /** Maximum number of chars in an input. */
+    public static final int MAX_INPUT_LENGTH = 1 << 27;
+
+    /** Maximum delay (in milliseconds) between attempts to accept a connection after a failure. */
+    private static final int MAX_ACCEPT_BACKOFF = 1000;
+
+    // ---------------------------------------------------------------------------------------------
+
+    private final ServerSocket socket;
+    private final LexCache cache;
+    private final Thread acceptor;
+
+    /** Open connections, closed along with the server. */
+    private final Set<Socket> connections = ConcurrentHashMap.newKeySet();
+
+    private final ExecutorService workers = Executors.newCachedThreadPool(task -> {
+        Thread thread = new Thread(task, "lex-server-worker");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Starts a server listening on {@code port} (or on an ephemeral port if 0, see {@link #port()})
+     * of the loopback interface, caching results up to (approximately) {@code cache_capacity}
+     * bytes.
+     */
+    public LexServer (int port, long cache_capacity) throws IOException
+    {
+        this.cache = new LexCache(cache_capacity);
+        this.socket = new ServerSocket(port, 50, InetAddress.getLoopbackAddress());
+        this.acceptor = new Thread(this::accept, "lex-server");
+        acceptor.start();
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * The port the server listens on.
+     */
+    public int port() {
+        return socket.getLocalPort();
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * The cache of lexing results (e.g. to query its statistics).
+     */
+    public LexCache cache() {
+        return cache;
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    private void accept()
+    {
+        int backoff = 0;
+
+        while (!socket.isClosed()) {
+            try {
+                Socket connection = socket.accept();
+                connections.add(connection);
+                workers.execute(() -> serve(connection));
+                backoff = 0;
+            }
+            catch (IOException e) {
+                if (socket.isClosed()) return;
+                // the failure may persist (e.g. out of file descriptors): don't spin on it
+                backoff = Math.min(Math.max(2 * backoff, 10), MAX_ACCEPT_BACKOFF);
+                try {
+                    Thread.sleep(backoff);
+                }
+                catch (InterruptedException ie) {
+                    return;
+                }
+            }
+        }
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    private void serve (Socket connection)
+    {
+        try (Socket socket = connection)
+        {
+            socket.setTcpNoDelay(true);
+            DataInputStream in = new DataInputStream(
+                new BufferedInputStream(socket.getInputStream(), 1 << 16));
+            DataOutputStream out = new DataOutputStream(
+                new BufferedOutputStream(socket.getOutputStream(), 1 << 16));
+            byte[] chunk = new byte[1 << 16];
+
+            while (true)
+            {
+                int magic;
+                try {
+                    magic = in.readInt();
+                }
+                catch (EOFException e) {
+                    return; // client is done
+                }
+
+                if (magic != MAGIC) return;
+                int count = in.readInt();
+                if (count < 0 || count > MAX_BATCH_SIZE)
+                    throw new IOException("invalid batch size: " + count);
+
+                for (int i = 0; i < count; ++ i) {
+                    LexResult tokens = cache.lex(read_input(in, chunk));
+                    ByteBuffer encoded = ByteBuffer.allocate(TokenCodec.max_size(tokens));
+                    TokenCodec.encode(tokens, encoded);
+                    out.writeInt(encoded.position());
+                    out.write(encoded.array(), 0, encoded.position());
+                    out.flush();
+                }
+            }
+        }
+        catch (IOException | RuntimeException e) {
+            // drop the connection: the client falls back to lexing in-process
+        }
+        finally {
+            connections.remove(connection);
+        }
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Reads an input, using {@code chunk} to decode its chars. The input array grows with the
+     * received chars rather than being allocated from the announced length up front.
+     */
+    private static String read_input (DataInputStream in, byte[] chunk) throws IOException
+    {
+        int length = in.readInt();
+        if (length < 0 || length > MAX_INPUT_LENGTH)
+            throw new IOException("invalid input length: " + length);
+
+        char[] chars = new char[Math.min(length, chunk.length / 2)];
+        int size = 0;
+
+        while (size < length) {
+            int n = Math.min(length - size, chunk.length / 2);
+            in.readFully(chunk, 0, n * 2);
+            if (size + n > chars.length) {
+                int capacity = Math.max(chars.length * 2, size + n);
+                chars = Arrays.copyOf(chars, Math.min(length, capacity));
+            }
+            ByteBuffer.wrap(chunk, 0, n * 2).asCharBuffer().get(chars, size, n);
+            size += n;
+        }
+
+        return new String(chars);
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Stops accepting connections and closes the open ones.
+     */
+    @Override public void close() throws IOException
+    {
+        socket.close();
+        try {
+            acceptor.join();
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        for (Socket connection: connections)
+            connection.close();
+        workers.shutdown();
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Runs a server until the process is killed. Usage: {@code LexServer [port [cache_capacity]]},
+     * defaulting to {@link #DEFAULT_PORT} and {@link #DEFAULT_CACHE_CAPACITY}.
+     */
+    public static void main (String[] args) throws IOException
+    {
+        int port = args.length > 0 ? Integer.parseInt(args[0]) : DEFAULT_PORT;
+        long capacity = args.length > 1 ? Long.parseLong(args[1]) : DEFAULT_CACHE_CAPACITY;
+        LexServer server = new LexServer(port, capacity);
+        System.out.println("Lexing server listening on localhost:" + server.port());
+    }
+
+    // ---------------------------------------------------------------------------------------------
+}
@@ -0,0 +1,56 @@
+package norswap.core.lexer;
+
+/**
+ * Statistics about the tokens in an input, as computed by {@link Lexer#stats}.
+ */
+public final class LexStats
+{
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Total number of tokens (including EOF): the exact size of the array returned by
+     * {@link Lexer#lex} for the same input.
+     */
+    public int tokens;
+
+    /** Number of tokens of each kind, indexed by {@link Tokens.Kind#ordinal()}. */
+    public final int[] kind_counts = new int[Tokens.Kind.VALUES.length];
+
+    /** Number of lines in the input (i.e. the number of newline characters plus one). */
+    public int lines;
+
+    /** Total number of chars in garbage tokens. */
+    public int garbage_chars;
+
+    /** Size in chars of the largest comment token (including its delimiters and newlines). */
+    public int max_comment_chars;
+
+    /** Number of lines of the comment token with the most lines. */
+    public int max_comment_lines;
+
+    // ---------------------------------------------------------------------------------------------
+
+    /** Number of tokens of the given kind. */
+    public int count (Tokens.Kind kind) {
+        return kind_counts[kind.ordinal()];
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    @Override public String toString()
+    {
+        StringBuilder b = new StringBuilder();
+        b.append(tokens).append(" tokens (");
+        for (Tokens.Kind kind: Tokens.Kind.VALUES)
+            b.append(kind).append(": ").append(count(kind))
+             .append(kind == Tokens.Kind.EOF ? "" : ", ");
+        return b.append("), ")
+            .append(lines).append(" lines, ")
+            .append(garbage_chars).append(" garbage chars, ")
+            .append("largest comment: ").append(max_comment_chars).append(" chars / ")
+            .append(max_comment_lines).append(" lines")
+            .toString();
+    }
+
+    // ---------------------------------------------------------------------------------------------
+}
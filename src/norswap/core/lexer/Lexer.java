@@ -1,6 +1,8 @@
 package norswap.core.lexer;
 
 import norswap.utils.ArrayStack;
+import java.nio.CharBuffer;
+import java.util.List;
 
 /**
  * Contains the {@link #lex} function which performs tokenization.
@@ -12,311 +14,582 @@ public final class Lexer
     /**
      * Turns {@code code} (a nul-terminated string) into a sequence of tokens.
      * See {@code README.md} for more details.
+     * <p>
+     * The call is reported to the {@link Metrics} listeners, if any.
      */
     public static Tokens.Token[] lex (String code)
     {
-        if (code.charAt(code.length() - 1) != '\0')
-            throw new RuntimeException("Supplied code is not nul-terminated.");
+        return lex(scanner(code));
+    }
 
-        char c;
-        int pos = 0;
-        ArrayStack<Tokens.Token> stack = new ArrayStack<>(1024);
+    // ---------------------------------------------------------------------------------------------
 
-        while ((c = code.charAt(pos)) != '\0')
-        {
-            int start = pos;
-            switch (c)
-            {
-                case ' ':
+    /**
+     * Turns the characters of {@code src} in the range [{@code start}, {@code end}) into a
+     * sequence of tokens. If {@code src[end]} is a nul character, the array is lexed in place.
+     * Otherwise, it is copied through a small window.
+     * <p>
+     * The range needs not be nul-terminated, but if it contains a nul character, the input is
+     * considered to end there. The positions of the tokens are indices in {@code src}. The EOF
+     * token is located at {@code end} (or at the nul character) and has length 1, just as if the
+     * input were nul-terminated.
+     * <p>
+     * Comment lines are split from {@code src} when first accessed, so {@code src} should not be
+     * modified while the tokens are in use.
+     * <p>
+     * The call is reported to the {@link Metrics} listeners, if any.
+     */
+    public static Tokens.Token[] lex (char[] src, int start, int end)
+    {
+        return lex(new Scanner(src, start, end, 0));
+    }
 
-                    pos = match_spaces(code, pos, stack);
-                    break;
+    // ---------------------------------------------------------------------------------------------
 
-                case '\n':
+    /**
+     * Same as {@link #lex(char[], int, int)}, for a range of a char sequence, which is copied
+     * through a small window.
+     */
+    public static Tokens.Token[] lex (CharSequence src, int start, int end)
+    {
+        return lex(scanner(src, start, end));
+    }
 
-                    stack.push(new Tokens.Newline());
-                    ++ pos;
-                    break;
+    // ---------------------------------------------------------------------------------------------
 
-                case 'a': case 'b': case 'c': case 'd': case 'e': case 'f': case 'g':
-                case 'h': case 'i': case 'j': case 'k': case 'l': case 'm': case 'n':
-                case 'o': case 'p': case 'q': case 'r': case 's': case 't': case 'u':
-                case 'v': case 'w': case 'x': case 'y': case 'z':
-                case 'A': case 'B': case 'C': case 'D': case 'E': case 'F': case 'G':
-                case 'H': case 'I': case 'J': case 'K': case 'L': case 'M': case 'N':
-                case 'O': case 'P': case 'Q': case 'R': case 'S': case 'T': case 'U':
-                case 'V': case 'W': case 'X': case 'Y': case 'Z':
-                case '_':
-
-                    pos = match_id(code, pos, stack);
-                    break;
+    /**
+     * Same as {@link #lex(String)}, but skips the content of comments: comment tokens only record
+     * their span, alignment and line count, and {@link Tokens.Comment#lines()} returns null.
+     * <p>
+     * Without this, comment tokens retain the lexed input to split their lines on demand.
+     */
+    public static Tokens.Token[] lex_skip_comments (String code)
+    {
+        LexerOptions options = new LexerOptions();
+        options.skip_comments = true;
+        return lex(code, options);
+    }
 
-                case '/':
+    // ---------------------------------------------------------------------------------------------
 
-                    if (code.charAt(pos+1) == '/')
-                        pos = match_comment(code, pos, stack);
-                    else
-                        pos = match_operator(code, pos, stack);
-                    break;
+    /**
+     * Same as {@link #lex(char[], int, int)}, but skips the content of comments (see {@link
+     * #lex_skip_comments(String)}).
+     */
+    public static Tokens.Token[] lex_skip_comments (char[] src, int start, int end)
+    {
+        LexerOptions options = new LexerOptions();
+        options.skip_comments = true;
+        return lex(src, start, end, options);
+    }
 
-                case '(': case ')':
-                case '{': case '}':
-                case '[': case ']':
+    // ---------------------------------------------------------------------------------------------
 
-                    stack.push(new Tokens.Bracket(c));
-                    ++ pos;
-                    break;
+    /**
+     * Same as {@link #lex(String)}, with the given opt-in modes.
+     */
+    public static Tokens.Token[] lex (String code, LexerOptions options)
+    {
+        Scanner scanner = scanner(code);
+        options.apply(scanner);
+        return lex(scanner);
+    }
 
-                case '!': case '$': case '%': case '&': case '*': case '+': case ',':
-                case '-': case '.': case ':': case ';': case '<': case '=': case '>':
-                case '?': case '@': case '^': case '`': case '|': case '~': case '\\':
+    // ---------------------------------------------------------------------------------------------
 
-                    pos = match_operator(code, pos, stack);
-                    break;
+    /**
+     * Same as {@link #lex(char[], int, int)}, with the given opt-in modes.
+     */
+    public static Tokens.Token[] lex (char[] src, int start, int end, LexerOptions options)
+    {
+        Scanner scanner = new Scanner(src, start, end, 0);
+        options.apply(scanner);
+        return lex(scanner);
+    }
 
-                case '0': case '1': case '2': case '3': case '4':
-                case '5': case '6': case '7': case '8': case '9':
+    // ---------------------------------------------------------------------------------------------
 
-                    pos = match_int_literal(code, pos, stack);
-                    break;
+    /**
+     * Returns a scanner over {@code code}, which is lexed through a window, so that it is never
+     * copied as a whole.
+     */
+    static Scanner scanner (String code)
+    {
+        if (code.isEmpty() || code.charAt(code.length() - 1) != '\0')
+            throw new RuntimeException("Supplied code is not nul-terminated.");
+        return new Scanner(code, 0, code.length() - 1, 0);
+    }
 
-                case '"':
+    // ---------------------------------------------------------------------------------------------
 
-                    pos = match_string_literal(code, pos, stack);
-                    break;
+    static Scanner scanner (CharSequence src, int start, int end)
+    {
+        return new Scanner(src, start, end, 0);
+    }
 
-                case '\'':
+    // ---------------------------------------------------------------------------------------------
 
-                    pos = match_char_literal(code, pos, stack);
-                    break;
+    /**
+     * Copies {@code src[start:end]} to {@code dst} at index {@code at}, using bulk copies for the
+     * common sequence types.
+     */
+    static void get_chars (CharSequence src, int start, int end, char[] dst, int at)
+    {
+        if (src instanceof String)
+            ((String) src).getChars(start, end, dst, at);
+        else if (src instanceof StringBuilder)
+            ((StringBuilder) src).getChars(start, end, dst, at);
+        else if (src instanceof CharBuffer && ((CharBuffer) src).hasArray()) {
+            CharBuffer buffer = (CharBuffer) src;
+            System.arraycopy(buffer.array(), buffer.arrayOffset() + buffer.position() + start,
+                dst, at, end - start);
+        }
+        else
+            for (int i = start; i < end; ++ i) dst[at++] = src.charAt(i);
+    }
 
-                default:
-                    append_garbage_char(code, pos++, stack);
-            }
+    // ---------------------------------------------------------------------------------------------
 
-            Tokens.Token top = stack.peek();
-            if (top.pos < 0) top.pos = start;
-            top.len = pos - top.pos;
-        }
+    private static Tokens.Token[] lex (Scanner scanner)
+    {
+        if (!Metrics.enabled())
+            return lex_tokens(scanner);
+
+        int from = scanner.pos + scanner.offset;
+        Metrics.Probe probe = Metrics.begin(Metrics.Operation.LEX);
+        Tokens.Token[] tokens = lex_tokens(scanner);
+        // the scanner's start is now the position of the EOF token
+        Metrics.end(probe, scanner.start + scanner.offset - from, tokens);
+        return tokens;
+    }
 
-        Tokens.EOF eof = new Tokens.EOF();
-        eof.pos = pos;
-        eof.len = 1;
-        stack.push(eof);
+    // ---------------------------------------------------------------------------------------------
+
+    private static Tokens.Token[] lex_tokens (Scanner scanner)
+    {
+        ArrayStack<Tokens.Token> stack = new ArrayStack<>(1024);
+
+        while (true) {
+            Tokens.Kind kind = scanner.next();
+            stack.push(token(scanner));
+            if (kind == Tokens.Kind.EOF) break;
+        }
 
         return stack.toArray(new Tokens.Token[0]);
     }
 
     // ---------------------------------------------------------------------------------------------
 
-    private static int match_spaces (String code, int pos, ArrayStack<Tokens.Token> stack)
+    /**
+     * Same as {@link #lex(String)}, but also appends checkpoints to {@code checkpoints}: snapshots
+     * of the lexer state taken every {@code interval} lines, from which lexing can be resumed with
+     * {@link #resume(String, LexerState)}.
+     * <p>
+     * A checkpoint is taken after the first line demarcator (newline or comment) that brings the
+     * line count (see {@link LexerState#line}) to or past the next multiple of {@code interval}.
+     */
+    public static Tokens.Token[] lex (String code, int interval, List<LexerState> checkpoints)
     {
-        int start = pos;
-        char c = code.charAt(pos);
-        while (c == ' ') c = code.charAt(++ pos);
-        stack.push(new Tokens.Spaces(pos - start));
-        return pos;
+        return lex(scanner(code), interval, checkpoints);
     }
 
     // ---------------------------------------------------------------------------------------------
 
-    private static int match_id (String code, int pos, ArrayStack<Tokens.Token> stack)
+    /**
+     * Same as {@link #lex(String, int, List)}, for the range [{@code start}, {@code end}) of
+     * {@code src} (see {@link #lex(char[], int, int)}).
+     */
+    public static Tokens.Token[] lex (
+            char[] src, int start, int end, int interval, List<LexerState> checkpoints)
     {
-        StringBuilder b = new StringBuilder();
+        return lex(new Scanner(src, start, end, 0), interval, checkpoints);
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    private static Tokens.Token[] lex (
+            Scanner scanner, int interval, List<LexerState> checkpoints)
+    {
+        if (interval <= 0)
+            throw new IllegalArgumentException("Checkpoint interval must be positive: " + interval);
+
+        if (!Metrics.enabled())
+            return lex_tokens(scanner, interval, checkpoints);
+
+        int from = scanner.pos + scanner.offset;
+        Metrics.Probe probe = Metrics.begin(Metrics.Operation.LEX);
+        Tokens.Token[] tokens = lex_tokens(scanner, interval, checkpoints);
+        Metrics.end(probe, scanner.start + scanner.offset - from, tokens);
+        return tokens;
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    private static Tokens.Token[] lex_tokens (
+            Scanner scanner, int interval, List<LexerState> checkpoints)
+    {
+        ArrayStack<Tokens.Token> stack = new ArrayStack<>(1024);
+        int line = 0;
+        int next = interval;
 
         while (true) {
-            char c = code.charAt(pos);
-            if (!Predicates.is_id_char(c)) break;
-            ++ pos;
-            b.append(c);
+            Tokens.Kind kind = scanner.next();
+            stack.push(token(scanner));
+            if (kind == Tokens.Kind.EOF) break;
+            line += newlines(scanner);
+            if (line >= next) {
+                checkpoints.add(scanner.state(line, stack.size()));
+                next = (line / interval + 1) * interval;
+            }
         }
 
-        stack.push(new Tokens.Identifier(b.toString()));
-        return pos;
+        return stack.toArray(new Tokens.Token[0]);
     }
 
     // ---------------------------------------------------------------------------------------------
 
     /**
-     * Whether the token implies the start of a new line.
+     * Resumes lexing {@code code} (a nul-terminated string) from {@code state}, which must have
+     * been obtained from {@link #lex(String, int, List)} on the same string. Returns the tokens
+     * that follow the state in the token stream of the whole string, i.e. the suffix of this
+     * stream starting at index {@link LexerState#token}.
+     * <p>
+     * The call is reported to the {@link Metrics} listeners, if any.
      */
-    private static boolean is_line_demarcator (Tokens.Token token)
+    public static Tokens.Token[] resume (String code, LexerState state)
     {
-        return token == null || token instanceof Tokens.Newline || token instanceof Tokens.Comment;
+        Scanner scanner = scanner(code);
+        scanner.restore(state);
+        return lex(scanner);
     }
 
     // ---------------------------------------------------------------------------------------------
 
-    private static int match_comment (String code, int pos, ArrayStack<Tokens.Token> stack)
+    /**
+     * Same as {@link #resume(String, LexerState)}, for the range [{@code start}, {@code end}) of
+     * {@code src} (see {@link #lex(char[], int, int, int, List)}).
+     */
+    public static Tokens.Token[] resume (char[] src, int start, int end, LexerState state)
     {
-        // 1. set alignment, potentially pop leading space
+        if (state.pos < start)
+            throw new IndexOutOfBoundsException(
+                "state position " + state.pos + " before range start " + start);
+        Scanner scanner = new Scanner(src, start, end, 0);
+        scanner.restore(state);
+        return lex(scanner);
+    }
 
-        Tokens.Token last = stack.poll();
-        Tokens.Token penultimate = stack.peek();
-        ArrayStack<String> lines;
-        boolean block = false;
+    // ---------------------------------------------------------------------------------------------
 
-        int align = last instanceof Tokens.Spaces && is_line_demarcator(penultimate)
-            ? ((Tokens.Spaces) last).count
-            : 0;
+    /**
+     * Returns the number of line demarcations in the last token recognized by the scanner: one
+     * per newline and one per comment line, except for the last line of a comment at the end of
+     * the input, which has no newline.
+     */
+    private static int newlines (Scanner scanner)
+    {
+        switch (scanner.kind) {
+            case NEWLINE:
+                return 1;
+            case COMMENT:
+                return scanner.at(scanner.end - 1) == '\n' ? scanner.lines : scanner.lines - 1;
+            default:
+                return 0;
+        }
+    }
 
-        pos -= align;
-        if (align == 0 && last != null) stack.push(last);
+    // ---------------------------------------------------------------------------------------------
 
-        if (align > 0 || is_line_demarcator(last)) {
-            block = true;
-            lines = new ArrayStack<>(4);
-        }
-        else {
-            // minimize reallocations
-            lines = new ArrayStack<>(1);
-        }
+    /**
+     * Same as {@link #lex(String)}, but returns the tokens in the compact representation described
+     * in {@link CompactTokens}.
+     */
+    public static CompactTokens lex_compact (String code)
+    {
+        return lex_compact(scanner(code));
+    }
 
-        int start = pos;
+    // ---------------------------------------------------------------------------------------------
 
-        // 2. match lines
+    /**
+     * Same as {@link #lex(char[], int, int)}, but returns the tokens in the compact representation
+     * described in {@link CompactTokens}.
+     */
+    public static CompactTokens lex_compact (char[] src, int start, int end)
+    {
+        return lex_compact(new Scanner(src, start, end, 0));
+    }
 
-        while (true) {
-            int line_start = pos;
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Same as {@link #lex(CharSequence, int, int)}, but returns the tokens in the compact
+     * representation described in {@link CompactTokens}.
+     */
+    public static CompactTokens lex_compact (CharSequence src, int start, int end)
+    {
+        return lex_compact(scanner(src, start, end));
+    }
 
-            // skip leading space
-            char c = code.charAt(pos);
-            while (c == ' ') c = code.charAt(++ pos);
+    // ---------------------------------------------------------------------------------------------
 
-            // check alignment & comment syntax
-            if (pos - line_start != align || c != '/' || code.charAt(++ pos) != '/') {
-                pos = line_start;
-                break;
-            }
-            c = code.charAt(++ pos);
-
-            // skip a single leading space, if present
-            if (c == ' ') c = code.charAt(++ pos);
-            // match line content
-            StringBuilder b = new StringBuilder();
-            while (c != '\n' && c != 0) {
-                b.append(c);
-                c = code.charAt(++ pos);
-            }
-            if (c == '\n') ++ pos;
+    private static CompactTokens lex_compact (Scanner scanner)
+    {
+        if (!Metrics.enabled())
+            return CompactTokens.lex(scanner);
+
+        int from = scanner.pos + scanner.offset;
+        Metrics.Probe probe = Metrics.begin(Metrics.Operation.LEX);
+        CompactTokens tokens = CompactTokens.lex(scanner);
+        Metrics.end(probe, scanner.start + scanner.offset - from, tokens);
+        return tokens;
+    }
 
-            lines.push(b.toString());
-            if (!block) break;
-        }
+    // ---------------------------------------------------------------------------------------------
 
-        Tokens.Comment comment = new Tokens.Comment(block, align, lines.toArray(new String[0]));
-        comment.pos = start;
-        stack.push(comment);
-        return pos;
+    /**
+     * Same as {@link #lex(String)}, but returns the tokens as an immutable {@link LexResult}, which
+     * can be shared between threads without copying.
+     */
+    public static LexResult lex_result (String code)
+    {
+        return lex_result(scanner(code));
     }
 
     // ---------------------------------------------------------------------------------------------
 
-    private static int match_operator (String code, int pos, ArrayStack<Tokens.Token> stack)
+    /**
+     * Same as {@link #lex(char[], int, int)}, but returns the tokens as an immutable {@link
+     * LexResult}.
+     */
+    public static LexResult lex_result (char[] src, int start, int end)
     {
-        StringBuilder b = new StringBuilder();
+        return lex_result(new Scanner(src, start, end, 0));
+    }
 
-        char c = code.charAt(pos);
-        char d;
-        while (Predicates.is_operator(c)) {
-            d = code.charAt(++ pos);
-            if (c == '/' && d == '/') { -- pos; break; }
-            b.append(c);
-            c = d;
-        }
+    // ---------------------------------------------------------------------------------------------
 
-        stack.push(new Tokens.Operator(b.toString()));
-        return pos;
+    /**
+     * Same as {@link #lex(CharSequence, int, int)}, but returns the tokens as an immutable {@link
+     * LexResult}.
+     */
+    public static LexResult lex_result (CharSequence src, int start, int end)
+    {
+        return lex_result(scanner(src, start, end));
     }
 
     // ---------------------------------------------------------------------------------------------
 
-    private static int match_int_literal (String code, int pos, ArrayStack<Tokens.Token> stack)
+    private static LexResult lex_result (Scanner scanner)
     {
-        int num = 0;
-        boolean overflow = false;
-        char c = code.charAt(pos);
+        if (!Metrics.enabled())
+            return LexResult.lex(scanner);
+
+        int from = scanner.pos + scanner.offset;
+        Metrics.Probe probe = Metrics.begin(Metrics.Operation.LEX);
+        LexResult tokens = LexResult.lex(scanner);
+        Metrics.end(probe, scanner.start + scanner.offset - from, tokens);
+        return tokens;
+    }
 
-        while (Predicates.is_digit(c)) {
-            int tmp = num * 10 + c - '0';
-            if (tmp < num) {
-                overflow = true;
-                break;
-            }
-            num = tmp;
-            c = code.charAt(++ pos);
-        }
+    // ---------------------------------------------------------------------------------------------
 
-        stack.push(new Tokens.IntLiteral(num));
-        if (!overflow) return pos;
+    /**
+     * Runs the lexer over {@code code} (a nul-terminated string) without materializing any token,
+     * only collecting statistics about the tokens that {@link #lex} would have returned.
+     * <p>
+     * The call is reported to the {@link Metrics} listeners, if any.
+     */
+    public static LexStats stats (String code)
+    {
+        return stats(scanner(code));
+    }
 
-        // overflow: add extraneous characters to garbage string
-        while (Predicates.is_digit(c)) {
-            append_garbage_char(code, pos, stack);
-            c = code.charAt(++ pos);
-        }
-        return pos;
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Same as {@link #stats(String)}, for the range [{@code start}, {@code end}) of {@code src}
+     * (see {@link #lex(char[], int, int)}).
+     */
+    public static LexStats stats (char[] src, int start, int end)
+    {
+        return stats(new Scanner(src, start, end, 0));
     }
 
     // ---------------------------------------------------------------------------------------------
 
-    private static int match_string_literal (String code, int pos, ArrayStack<Tokens.Token> stack)
+    /**
+     * Same as {@link #stats(String)}, for the range [{@code start}, {@code end}) of {@code src}
+     * (see {@link #lex(CharSequence, int, int)}).
+     */
+    public static LexStats stats (CharSequence src, int start, int end)
     {
-        int start = pos;
-        StringBuilder b = new StringBuilder();
-        char c = code.charAt(++ pos);
+        return stats(scanner(src, start, end));
+    }
 
-        while (c != '"' && c != 0) {
-            b.append(c);
-            if (c == '\\') {
-                c = code.charAt(++ pos);
-                if (c == 0) break;
-                b.append(c);
-            }
-            c = code.charAt(++ pos);
-        }
-        if (c == 0) return start;
+    // ---------------------------------------------------------------------------------------------
 
-        stack.push(new Tokens.StringLiteral(b.toString()));
-        return pos + 1;
+    private static LexStats stats (Scanner scanner)
+    {
+        if (!Metrics.enabled())
+            return stats_tokens(scanner);
+
+        int from = scanner.pos + scanner.offset;
+        Metrics.Probe probe = Metrics.begin(Metrics.Operation.STATS);
+        LexStats stats = stats_tokens(scanner);
+        Metrics.end(probe, scanner.start + scanner.offset - from, stats);
+        return stats;
     }
 
     // ---------------------------------------------------------------------------------------------
 
-    private static int match_char_literal (String code, int pos, ArrayStack<Tokens.Token> stack)
+    private static LexStats stats_tokens (Scanner scanner)
     {
-        int start = pos;
-        StringBuilder b = new StringBuilder();
-        char c = code.charAt(++ pos);
+        LexStats stats = new LexStats();
+        int[] counts = stats.kind_counts;
+        int lines = 1;
+
+        while (true) {
+            Tokens.Kind kind = scanner.next();
+            ++ counts[kind.ordinal()];
+            lines += newlines(scanner);
+
+            switch (kind) {
+                case COMMENT:
+                    int len = scanner.end - scanner.start;
+                    if (len > stats.max_comment_chars)
+                        stats.max_comment_chars = len;
+                    if (scanner.lines > stats.max_comment_lines)
+                        stats.max_comment_lines = scanner.lines;
+                    break;
 
-        while (c != '\'' && c != 0) {
-            b.append(c);
-            if (c == '\\') {
-                c = code.charAt(++ pos);
-                if (c == 0) break;
-                b.append(c);
+                case GARBAGE:
+                    stats.garbage_chars += scanner.end - scanner.start;
+                    break;
+
+                case EOF:
+                    stats.tokens = sum(counts);
+                    stats.lines = lines;
+                    return stats;
+
+                default:
             }
-            c = code.charAt(++ pos);
         }
-        if (c == 0) return start;
+    }
 
-        stack.push(new Tokens.CharLiteral(b.toString()));
-        return pos + 1;
+    // ---------------------------------------------------------------------------------------------
+
+    private static int sum (int[] array)
+    {
+        int sum = 0;
+        for (int x: array) sum += x;
+        return sum;
     }
 
     // ---------------------------------------------------------------------------------------------
 
-    private static void append_garbage_char (String code, int pos, ArrayStack<Tokens.Token> stack)
+    /**
+     * Materializes the last token recognized by the scanner.
+     */
+    static Tokens.Token token (Scanner scanner)
     {
-        char c = code.charAt(pos);
-        Object top = stack.peek();
+        Tokens.Token token = payload(scanner);
+        token.pos = scanner.start + scanner.offset;
+        token.len = scanner.end - scanner.start;
+        return token;
+    }
 
-        if (top instanceof Tokens.Garbage) {
-            Tokens.Garbage garbage = (Tokens.Garbage) top;
-            garbage.str += c;
-        }
-        else {
-            stack.push(new Tokens.Garbage("" + c));
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Materializes a token of the given kind from its text, {@code buf[start:end]}, which must be
+     * the text of a token of this kind, as lexed by {@link #lex}. The token position is set to
+     * {@code start + offset}. For EOF tokens, {@code end} is ignored and the length is set to 1.
+     * <p>
+     * {@code line_start} indicates whether the token was preceded by a line demarcator (see
+     * README.md). For tokens lexed from an input, this is the case iff the token is at the start of
+     * the input or preceded by a newline character. This determines the type of comments.
+     * <p>
+     * This does not run the lexer and does not validate the text.
+     */
+    static Tokens.Token materialize (
+            Tokens.Kind kind, char[] buf, int start, int end, boolean line_start, int offset)
+    {
+        Tokens.Token token = kind == Tokens.Kind.COMMENT
+            ? comment(buf, start, end, line_start)
+            : payload(kind, buf, start, end);
+
+        token.pos = start + offset;
+        token.len = kind == Tokens.Kind.EOF ? 1 : end - start;
+        return token;
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Materializes a comment token from its text (see {@link #materialize}). Its lines are split
+     * lazily from {@code buf}.
+     */
+    private static Tokens.Comment comment (char[] buf, int start, int end, boolean block)
+    {
+        int align = 0;
+        if (block) while (buf[start + align] == ' ') ++ align;
+
+        int count = 0;
+        for (int i = start; i < end; ++ i)
+            if (buf[i] == '\n') ++ count;
+        if (buf[end - 1] != '\n') ++ count;
+
+        return new Tokens.Comment(block, align, count, CharBuffer.wrap(buf), start, end);
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Materializes the last token recognized by the scanner, without setting its position.
+     */
+    static Tokens.Token payload (Scanner scanner)
+    {
+        if (scanner.kind != Tokens.Kind.COMMENT)
+            return payload(scanner.kind, scanner.buf, scanner.start, scanner.end);
+
+        return new Tokens.Comment(scanner.block, scanner.align, scanner.lines,
+            scanner.skip_comments ? null : scanner.source,
+            scanner.start + scanner.base, scanner.end + scanner.base);
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Materializes a token of the given kind, other than a comment, from its text,
+     * {@code buf[start:end]}, without setting its position (see {@link #materialize}).
+     */
+    private static Tokens.Token payload (Tokens.Kind kind, char[] buf, int start, int end)
+    {
+        switch (kind)
+        {
+            case IDENTIFIER:
+                return new Tokens.Identifier(new String(buf, start, end - start));
+            case INT_LITERAL:
+                return new Tokens.IntLiteral(new String(buf, start, end - start));
+            case STRING_LITERAL:
+                return new Tokens.StringLiteral(new String(buf, start + 1, end - start - 2));
+            case CHAR_LITERAL:
+                return new Tokens.CharLiteral(new String(buf, start + 1, end - start - 2));
+            case BRACKET:
+                return new Tokens.Bracket(buf[start]);
+            case OPERATOR:
+                return new Tokens.Operator(new String(buf, start, end - start));
+            case SPACES:
+                return new Tokens.Spaces(end - start);
+            case NEWLINE:
+                return new Tokens.Newline();
+            case GARBAGE:
+                return new Tokens.Garbage(new String(buf, start, end - start));
+            case EOF:
+                return new Tokens.EOF();
+            default:
+                throw new Error("unreachable");
         }
     }
 
@@ -0,0 +1,579 @@
+package norswap.core.lexer;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Arrays;
+
+/**
+ * Generates the source of a lexer class specialized for a {@link LexerSpec}.
+ * <p>
+ * The generated class depends only on {@link Tokens} and has the same interface as {@link Lexer}
+ * ({@code lex(String)} and {@code lex(char[], int, int)}), yielding the same tokens for the default
+ * spec. The character classes of the spec are compiled into switches and inlined comparisons, so
+ * that the generated lexer runs as fast as {@link Lexer}. Unlike {@link Lexer}, it splits comment
+ * lines eagerly.
+ * <p>
+ * The generator is meant to run as a build step, through {@link #main}. With Maven, in the
+ * project that uses the dialect (which depends on this library):
+ * <pre>{@code
+ * <plugin>
+ *     <groupId>org.codehaus.mojo</groupId>
+ *     <artifactId>exec-maven-plugin</artifactId>
+ *     <executions><execution>
+ *         <phase>generate-sources</phase>
+ *         <goals><goal>java</goal></goals>
+ *         <configuration>
+ *             <mainClass>norswap.core.lexer.LexerGenerator</mainClass>
+ *             <arguments>
+ *                 <argument>src/main/lexer/dialect.properties</argument>
+ *                 <argument>${project.build.directory}/generated-sources/lexers</argument>
+ *                 <argument>com.example.DialectLexer</argument>
+ *             </arguments>
+ *         </configuration>
+ *     </execution></executions>
+ * </plugin>
+ * }</pre>
+ * together with {@code build-helper-maven-plugin} to add the output directory as a source root.
+ * This project's own {@code pom.xml} does the same in the {@code generate-test-sources} phase.
+ */
+public final class LexerGenerator
+{
+    // ---------------------------------------------------------------------------------------------
+
+    private final LexerSpec spec;
+    private final StringBuilder out = new StringBuilder();
+    private int indent = 0;
+
+    /** Whether the comment delimiter starts with an operator character. */
+    private final boolean comment_is_operator;
+
+    // ---------------------------------------------------------------------------------------------
+
+    private LexerGenerator (LexerSpec spec)
+    {
+        spec.validate();
+        this.spec = spec;
+        this.comment_is_operator = spec.operators.indexOf(spec.line_comment.charAt(0)) >= 0;
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Returns the source of a lexer for {@code spec}, as class {@code class_name} in package
+     * {@code package_name} (the default package if empty).
+     *
+     * @throws IllegalArgumentException if the spec is not valid (see {@link LexerSpec#validate()})
+     */
+    public static String generate (LexerSpec spec, String package_name, String class_name)
+    {
+        LexerGenerator generator = new LexerGenerator(spec);
+        generator.lexer(package_name, class_name);
+        return generator.out.toString();
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Writes the lexer for {@code spec}, as class {@code qualified_name}, to the corresponding
+     * file under {@code directory} (e.g. {@code directory/com/example/DialectLexer.java}). The
+     * file is only rewritten if its content changes, to avoid needless recompilation.
+     */
+    public static Path write (LexerSpec spec, Path directory, String qualified_name)
+        throws IOException
+    {
+        int dot = qualified_name.lastIndexOf('.');
+        String package_name = dot < 0 ? "" : qualified_name.substring(0, dot);
+        String class_name = qualified_name.substring(dot + 1);
+        byte[] source = generate(spec, package_name, class_name).getBytes(StandardCharsets.UTF_8);
+
+        Path file = directory.resolve(qualified_name.replace('.', '/') + ".java");
+        Files.createDirectories(file.getParent());
+        if (!Files.exists(file) || !Arrays.equals(Files.readAllBytes(file), source))
+            Files.write(file, source);
+        return file;
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Usage: {@code LexerGenerator <spec.properties> <output directory> <qualified class name>}.
+     */
+    public static void main (String[] args) throws IOException
+    {
+        if (args.length != 3) {
+            System.err.println("usage: LexerGenerator <spec> <directory> <class>");
+            System.exit(1);
+        }
+
+        Path file = write(LexerSpec.read(Paths.get(args[0])), Paths.get(args[1]), args[2]);
+        System.out.println("generated " + file);
+    }
+
+    // ---------------------------------------------------------------------------------------------
+    // Output helpers
+
+    /** Appends a line, indented by the current indentation (an empty line if no parts). */
+    private void line (String... parts)
+    {
+        if (parts.length > 0)
+            for (int i = 0; i < indent; ++ i) out.append("    ");
+        for (String part: parts) out.append(part);
+        out.append('\n');
+    }
+
+    /** Appends a separator line, as used between class members. */
+    private void separator()
+    {
+        char[] dashes = new char[93];
+        Arrays.fill(dashes, '-');
+        line("// ", new String(dashes));
+        line();
+    }
+
+    /** Opens a block: appends a line then a brace line, and indents. */
+    private void open (String... parts)
+    {
+        line(parts);
+        line("{");
+        ++ indent;
+    }
+
+    /** Closes a block opened with {@link #open}. */
+    private void close()
+    {
+        -- indent;
+        line("}");
+    }
+
+    /** Appends case labels for all the chars in {@code chars}, 7 per line. */
+    private void cases (String chars)
+    {
+        StringBuilder b = new StringBuilder();
+        for (int i = 0; i < chars.length(); ++ i) {
+            if (i > 0 && i % 7 == 0) {
+                line(b.toString().trim());
+                b.setLength(0);
+            }
+            b.append("case ").append(literal(chars.charAt(i))).append(": ");
+        }
+        if (b.length() > 0) line(b.toString().trim());
+    }
+
+    /** Returns a Java char literal for {@code c}. */
+    private static String literal (char c)
+    {
+        switch (c) {
+            case '\'': return "'\\''";
+            case '\\': return "'\\\\'";
+            case '\n': return "'\\n'";
+            case '\0': return "'\\0'";
+            default:   return "'" + c + "'";
+        }
+    }
+
+    /** Returns a Java string literal for {@code str}, which must be printable ASCII. */
+    private static String string (String str)
+    {
+        return '"' + str.replace("\\", "\\\\").replace("\"", "\\\"") + '"';
+    }
+
+    /** Returns a Java expression testing whether {@code str} occurs at index {@code pos}. */
+    private static String matches (String str, String pos)
+    {
+        StringBuilder b = new StringBuilder();
+        for (int i = 0; i < str.length(); ++ i) {
+            if (i > 0) b.append(" && ");
+            b.append("at(").append(pos).append(i == 0 ? "" : " + " + i).append(") == ")
+                .append(literal(str.charAt(i)));
+        }
+        return b.toString();
+    }
+
+    // ---------------------------------------------------------------------------------------------
+    // Generated code
+
+    private void lexer (String package_name, String class_name)
+    {
+        if (!package_name.isEmpty()) {
+            line("package ", package_name, ";");
+            line();
+        }
+
+        if (!package_name.equals("norswap.core.lexer"))
+            line("import norswap.core.lexer.Tokens;");
+        line("import java.util.Arrays;");
+        line();
+        line("/**");
+        line(" * Lexer generated by {@code norswap.core.lexer.LexerGenerator}. Do not edit.");
+        line(" */");
+        open("public final class ", class_name);
+        separator();
+
+        line("// operators:    ", string(spec.operators));
+        line("// brackets:     ", string(spec.brackets));
+        line("// line_comment: ", string(spec.line_comment));
+        line("// int_suffixes: ", string(spec.int_suffixes));
+        line();
+        separator();
+
+        line("private final char[] buf;");
+        line("private final int limit;");
+        line("private int pos;");
+        line("private int start;");
+        line("private boolean line_start = true;");
+        line("private int[] bounds = new int[8];");
+        line();
+        separator();
+
+        open("private ", class_name, " (char[] buf, int start, int limit)");
+        line("this.buf = buf;");
+        line("this.pos = start;");
+        line("this.limit = limit;");
+        close();
+        line();
+        separator();
+
+        line("/**");
+        line(" * Same as {@code norswap.core.lexer.Lexer.lex(String)}, for this dialect.");
+        line(" */");
+        open("public static Tokens.Token[] lex (String code)");
+        line("if (code.isEmpty() || code.charAt(code.length() - 1) != '\\0')");
+        line("    throw new RuntimeException(\"Supplied code is not nul-terminated.\");");
+        line("char[] buf = code.toCharArray();");
+        line("return new ", class_name, "(buf, 0, buf.length - 1).lex();");
+        close();
+        line();
+        separator();
+
+        line("/**");
+        line(" * Same as {@code norswap.core.lexer.Lexer.lex(char[], int, int)}, "
+            + "for this dialect.");
+        line(" */");
+        open("public static Tokens.Token[] lex (char[] src, int start, int end)");
+        line("if (start < 0 || end < start || end > src.length)");
+        line("    throw new IndexOutOfBoundsException(");
+        line("        \"range [\" + start + \", \" + end + \") of array of length \" "
+            + "+ src.length);");
+        line("return new ", class_name, "(src, start, end).lex();");
+        close();
+        line();
+        separator();
+
+        open("private Tokens.Token[] lex()");
+        line("Tokens.Token[] tokens = new Tokens.Token[1024];");
+        line("int size = 0;");
+        line();
+        line("while (true) {");
+        line("    Tokens.Token token = next();");
+        line("    if (size == tokens.length) tokens = Arrays.copyOf(tokens, size * 2);");
+        line("    tokens[size++] = token;");
+        line("    if (token instanceof Tokens.EOF) return Arrays.copyOf(tokens, size);");
+        line("}");
+        close();
+        line();
+        separator();
+
+        open("private char at (int i)");
+        line("return i < limit ? buf[i] : '\\0';");
+        close();
+        line();
+        separator();
+
+        open("private Tokens.Token finish (Tokens.Token token, int end)");
+        line("token.pos = start;");
+        line("token.len = end - start;");
+        line("pos = end;");
+        line("line_start = token instanceof Tokens.Newline || token instanceof Tokens.Comment;");
+        line("return token;");
+        close();
+        line();
+        separator();
+
+        open("private String text (int end)");
+        line("return new String(buf, start, end - start);");
+        close();
+        line();
+        separator();
+
+        next();
+        predicates();
+        scanners();
+        comment();
+
+        out.setLength(out.length() - 1); // no empty line after the last separator
+        close();
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    private void next()
+    {
+        String operators = spec.operators;
+        char delimiter = spec.line_comment.charAt(0);
+
+        open("private Tokens.Token next()");
+        line("int pos = start = this.pos;");
+        line("char c = at(pos);");
+        line();
+        line("switch (c)");
+        line("{");
+        ++ indent;
+
+        line("case '\\0':");
+        line("    return finish(new Tokens.EOF(), pos + 1);");
+        line();
+        line("case ' ':");
+        line("    pos = scan_spaces(pos);");
+        line("    if (line_start && is_comment(pos))");
+        line("        return comment(start, pos - start, true);");
+        line("    return finish(new Tokens.Spaces(pos - start), pos);");
+        line();
+        line("case '\\n':");
+        line("    return finish(new Tokens.Newline(), pos + 1);");
+        line();
+        cases("abcdefghijklmnopqrstuvwxyz");
+        cases("ABCDEFGHIJKLMNOPQRSTUVWXYZ");
+        line("case '_':");
+        line("    pos = scan_id(pos);");
+        line("    return finish(new Tokens.Identifier(text(pos)), pos);");
+        line();
+        cases("0123456789");
+        line("    pos = scan_int_literal(pos);");
+        line("    return finish(new Tokens.IntLiteral(text(pos)), pos);");
+        line();
+
+        if (!spec.brackets.isEmpty()) {
+            cases(spec.brackets);
+            line("    return finish(new Tokens.Bracket(c), pos + 1);");
+            line();
+        }
+
+        line("case ", literal(delimiter), ":");
+        line("    if (is_comment(pos))");
+        line("        return comment(pos, 0, line_start);");
+        if (comment_is_operator) {
+            line("    pos = scan_operator(pos);");
+            line("    return finish(new Tokens.Operator(text(pos)), pos);");
+            operators = operators.replace(String.valueOf(delimiter), "");
+        } else {
+            line("    pos = scan_garbage(pos + 1);");
+            line("    return finish(new Tokens.Garbage(text(pos)), pos);");
+        }
+        line();
+
+        if (!operators.isEmpty()) {
+            cases(operators);
+            line("    pos = scan_operator(pos);");
+            line("    return finish(new Tokens.Operator(text(pos)), pos);");
+            line();
+        }
+
+        line("case '\"': case '\\'':");
+        line("    int end = scan_literal(pos, c);");
+        line("    if (end >= 0) {");
+        line("        String str = new String(buf, pos + 1, end - pos - 2);");
+        line("        return finish(c == '\"'");
+        line("            ? new Tokens.StringLiteral(str)");
+        line("            : new Tokens.CharLiteral(str), end);");
+        line("    }");
+        line("    pos = scan_garbage(pos + 1);");
+        line("    return finish(new Tokens.Garbage(text(pos)), pos);");
+        line();
+        line("default:");
+        line("    pos = scan_garbage(pos + 1);");
+        line("    return finish(new Tokens.Garbage(text(pos)), pos);");
+
+        -- indent;
+        line("}");
+        close();
+        line();
+        separator();
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    private void predicates()
+    {
+        open("private boolean is_comment (int pos)");
+        line("return ", matches(spec.line_comment, "pos"), ";");
+        close();
+        line();
+        separator();
+
+        if (!spec.operators.isEmpty()) {
+            open("private static boolean is_operator (char c)");
+            line("switch (c) {");
+            ++ indent;
+            cases(spec.operators);
+            line("    return true;");
+            line("default:");
+            line("    return false;");
+            -- indent;
+            line("}");
+            close();
+            line();
+            separator();
+        }
+
+        line("/**");
+        line(" * Whether {@code c} is always the start of a non-garbage token.");
+        line(" */");
+        open("private static boolean starts_token (char c)");
+        line("if ('a' <= c && c <= 'z' || 'A' <= c && c <= 'Z' "
+            + "|| '0' <= c && c <= '9' || c == '_')");
+        line("    return true;");
+        line();
+        line("switch (c) {");
+        ++ indent;
+        line("case ' ': case '\\n':");
+        cases(spec.operators + spec.brackets);
+        line("    return true;");
+        line("default:");
+        line("    return false;");
+        -- indent;
+        line("}");
+        close();
+        line();
+        separator();
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    private void scanners()
+    {
+        open("private int scan_spaces (int pos)");
+        line("char c = at(pos);");
+        line("while (c == ' ') c = at(++ pos);");
+        line("return pos;");
+        close();
+        line();
+        separator();
+
+        open("private int scan_id (int pos)");
+        line("char c = at(++ pos);");
+        line("while ('a' <= c && c <= 'z' || 'A' <= c && c <= 'Z' "
+            + "|| '0' <= c && c <= '9' || c == '_')");
+        line("    c = at(++ pos);");
+        line("return pos;");
+        close();
+        line();
+        separator();
+
+        open("private int scan_int_literal (int pos)");
+        line("char c = at(++ pos);");
+        line("while ('0' <= c && c <= '9') c = at(++ pos);");
+        if (!spec.int_suffixes.isEmpty()) {
+            line("while (true) {");
+            line("    switch (c) {");
+            indent += 2;
+            cases(spec.int_suffixes);
+            line("    c = at(++ pos);");
+            line("    continue;");
+            line("default:");
+            line("    return pos;");
+            indent -= 2;
+            line("    }");
+            line("}");
+        }
+        else {
+            line("return pos;");
+        }
+        close();
+        line();
+        separator();
+
+        if (!spec.operators.isEmpty()) {
+            open("private int scan_operator (int pos)");
+            if (comment_is_operator)
+                line("do ++ pos; while (is_operator(at(pos)) && !is_comment(pos));");
+            else
+                line("do ++ pos; while (is_operator(at(pos)));");
+            line("return pos;");
+            close();
+            line();
+            separator();
+        }
+
+        open("private int scan_literal (int pos, char quote)");
+        line("char c = at(++ pos);");
+        line();
+        line("while (c != quote && c != 0) {");
+        line("    if (c == '\\\\') {");
+        line("        c = at(++ pos);");
+        line("        if (c == 0) break;");
+        line("    }");
+        line("    c = at(++ pos);");
+        line("}");
+        line();
+        line("return c == 0 ? -1 : pos + 1;");
+        close();
+        line();
+        separator();
+
+        open("private int scan_garbage (int pos)");
+        line("while (true) {");
+        line("    char c = at(pos);");
+        line("    switch (c) {");
+        line("        case '\"': case '\\'':");
+        line("            if (scan_literal(pos, c) >= 0) return pos;");
+        line("            ++ pos;");
+        line("            break;");
+        line("        default:");
+        line(comment_is_operator
+            ? "            if (c == 0 || starts_token(c)) return pos;"
+            : "            if (c == 0 || starts_token(c) || is_comment(pos)) return pos;");
+        line("            ++ pos;");
+        line("    }");
+        line("}");
+        close();
+        line();
+        separator();
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    private void comment()
+    {
+        open("private Tokens.Token comment (int pos, int align, boolean block)");
+        line("int lines = 0;");
+        line();
+        line("while (true) {");
+        line("    int line_start = pos;");
+        line();
+        line("    char c = at(pos);");
+        line("    while (c == ' ') c = at(++ pos);");
+        line();
+        line("    if (pos - line_start != align || !is_comment(pos)) {");
+        line("        pos = line_start;");
+        line("        break;");
+        line("    }");
+        line();
+        line("    pos += ", String.valueOf(spec.line_comment.length()), ";");
+        line("    if (at(pos) == ' ') ++ pos;");
+        line("    int content_start = pos;");
+        line("    c = at(pos);");
+        line("    while (c != '\\n' && c != 0) c = at(++ pos);");
+        line();
+        line("    int i = 2 * lines++;");
+        line("    if (i == bounds.length) bounds = Arrays.copyOf(bounds, i * 2);");
+        line("    bounds[i] = content_start;");
+        line("    bounds[i + 1] = pos;");
+        line();
+        line("    if (c == '\\n') ++ pos;");
+        line("    if (!block) break;");
+        line("}");
+        line();
+        line("String[] strings = new String[lines];");
+        line("for (int i = 0; i < lines; ++ i)");
+        line("    strings[i] = new String(buf, bounds[2 * i], bounds[2 * i + 1] - bounds[2 * i]);");
+        line("return finish(new Tokens.Comment(block, align, strings), pos);");
+        close();
+        line();
+        separator();
+    }
+
+    // ---------------------------------------------------------------------------------------------
+}
@@ -0,0 +1,37 @@
+package norswap.core.lexer;
+
+/**
+ * Opt-in lexer modes, for {@link Lexer#lex(String, LexerOptions)}. The default options yield the
+ * lexer described in {@code README.md}.
+ */
+public final class LexerOptions
+{
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Whether to skip the content of comments (see {@link Lexer#lex_skip_comments(String)}).
+     */
+    public boolean skip_comments;
+
+    /**
+     * Whether identifiers may contain non-ASCII characters: they may then start with any
+     * character for which {@link Character#isUnicodeIdentifierStart(int)} holds, and continue with
+     * any character for which {@link Character#isUnicodeIdentifierPart(int)} holds, except
+     * ignorable control characters. Characters outside the BMP (surrogate pairs) are supported.
+     * <p>
+     * Without this, non-ASCII letters are garbage and split identifiers into multiple tokens.
+     * ASCII identifiers are recognized just as fast in both modes.
+     */
+    public boolean unicode_identifiers;
+
+    // ---------------------------------------------------------------------------------------------
+
+    /** Applies these options to {@code scanner}. */
+    void apply (Scanner scanner)
+    {
+        scanner.skip_comments = skip_comments;
+        scanner.unicode_ids = unicode_identifiers;
+    }
+
+    // ---------------------------------------------------------------------------------------------
+}
@@ -0,0 +1,138 @@
+package norswap.core.lexer;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Properties;
+
+/**
+ * A declarative description of a lexer dialect, from which {@link LexerGenerator} generates a
+ * specialized lexer class.
+ * <p>
+ * A dialect follows the rules of {@code README.md}, except for the parameters below. The default
+ * values describe the lexer implemented by {@link Lexer}.
+ * <p>
+ * Specs can be read from properties files (see {@link #read(Path)}), whose keys are the names of
+ * the fields below. Missing keys keep their default value.
+ */
+public final class LexerSpec
+{
+    // ---------------------------------------------------------------------------------------------
+
+    /** Operator characters. */
+    public String operators = "!$%&*+,-./:;<=>?@\\^`|~";
+
+    /** Bracket characters, each of which is a token on its own. */
+    public String brackets = "()[]{}";
+
+    /**
+     * Delimiter of line comments. If it starts with an operator character, operators may not
+     * contain the delimiter.
+     */
+    public String line_comment = "//";
+
+    /**
+     * Characters that may follow the digits of an int literal, as part of the literal (e.g.
+     * {@code "lLuU"} for {@code 10L} or {@code 7u}). The value of such literals is that of their
+     * digits (see {@link Tokens.IntLiteral#suffix()}).
+     */
+    public String int_suffixes = "";
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Reads a spec from the properties file at {@code path} (in ISO-8859-1, with the usual
+     * properties escapes: backslashes must be doubled).
+     *
+     * @throws IllegalArgumentException if the spec is not valid (see {@link #validate()})
+     */
+    public static LexerSpec read (Path path) throws IOException
+    {
+        Properties properties = new Properties();
+        try (InputStream in = Files.newInputStream(path)) {
+            properties.load(in);
+        }
+        return of(properties);
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Returns the spec described by {@code properties}.
+     *
+     * @throws IllegalArgumentException if the spec is not valid (see {@link #validate()}), or if
+     * a property is unknown
+     */
+    public static LexerSpec of (Properties properties)
+    {
+        LexerSpec spec = new LexerSpec();
+
+        for (String key: properties.stringPropertyNames()) {
+            String value = properties.getProperty(key);
+            switch (key) {
+                case "operators":       spec.operators      = value; break;
+                case "brackets":        spec.brackets       = value; break;
+                case "line_comment":    spec.line_comment   = value; break;
+                case "int_suffixes":    spec.int_suffixes   = value; break;
+                default:
+                    throw new IllegalArgumentException("Unknown lexer spec property: " + key);
+            }
+        }
+
+        spec.validate();
+        return spec;
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Checks that the spec describes an unambiguous lexer: operator and bracket characters must be
+     * distinct printable ASCII punctuation (excluding quotes and underscores), suffix characters
+     * must be ASCII letters, and the comment delimiter must be made of printable ASCII characters
+     * that cannot start an identifier, a number, or a literal.
+     *
+     * @throws IllegalArgumentException if the spec is not valid
+     */
+    public void validate()
+    {
+        String chars = operators + brackets;
+        for (int i = 0; i < chars.length(); ++ i)
+            if (chars.indexOf(chars.charAt(i), i + 1) >= 0)
+                throw new IllegalArgumentException("Duplicate character: " + chars.charAt(i));
+
+        for (char c: operators.toCharArray())
+            if (!is_punctuation(c))
+                throw new IllegalArgumentException("Invalid operator character: " + c);
+
+        for (char c: brackets.toCharArray())
+            if (!is_punctuation(c))
+                throw new IllegalArgumentException("Invalid bracket character: " + c);
+
+        for (char c: int_suffixes.toCharArray())
+            if (!Predicates.is_alpha(c))
+                throw new IllegalArgumentException("Invalid int suffix character: " + c);
+
+        if (line_comment.isEmpty())
+            throw new IllegalArgumentException("Empty line comment delimiter.");
+
+        char first = line_comment.charAt(0);
+        if (!is_punctuation(first) || brackets.indexOf(first) >= 0)
+            throw new IllegalArgumentException("Invalid line comment delimiter: " + line_comment);
+
+        for (char c: line_comment.toCharArray())
+            if (c <= ' ' || c >= 0x7F)
+                throw new IllegalArgumentException(
+                    "Invalid line comment delimiter: " + line_comment);
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    private static boolean is_punctuation (char c)
+    {
+        return c > ' ' && c < 0x7F && c != '"' && c != '\'' && c != '_'
+            && !Predicates.is_alpha(c) && !Predicates.is_digit(c);
+    }
+
+    // ---------------------------------------------------------------------------------------------
+}
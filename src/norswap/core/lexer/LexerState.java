@@ -0,0 +1,77 @@
+package norswap.core.lexer;
+
+/**
+ * An immutable snapshot of the state of the lexer between two tokens, from which lexing can be
+ * resumed with {@link Lexer#resume}, yielding the same tokens as lexing the whole input.
+ * <p>
+ * Besides the position, the lexer only needs to know whether the previous token was a line
+ * demarcator (which determines whether a comment is a block comment).
+ * <p>
+ * Snapshots are only valid for the input they were taken on (or for inputs that are identical up
+ * to the end of the last token before the snapshot, and up to the end of the first token after
+ * it).
+ */
+public final class LexerState
+{
+    // ---------------------------------------------------------------------------------------------
+
+    /** The state at the start of the input. */
+    public static final LexerState START = new LexerState(0, 0, 0, true);
+
+    // ---------------------------------------------------------------------------------------------
+
+    /** Position of the next token. */
+    public final int pos;
+
+    /** Number of line demarcations (newlines, and lines of comments) before {@link #pos}. */
+    public final int line;
+
+    /** Index of the next token in the token stream of the whole input. */
+    public final int token;
+
+    /** Whether the previous token was a line demarcator (newline, comment, or none at all). */
+    public final boolean line_start;
+
+    // ---------------------------------------------------------------------------------------------
+
+    LexerState (int pos, int line, int token, boolean line_start)
+    {
+        this.pos = pos;
+        this.line = line;
+        this.token = token;
+        this.line_start = line_start;
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    @Override public boolean equals (Object o)
+    {
+        if (this == o) return true;
+        if (!(o instanceof LexerState)) return false;
+        LexerState that = (LexerState) o;
+        return pos == that.pos
+            && line == that.line
+            && token == that.token
+            && line_start == that.line_start;
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    @Override public int hashCode()
+    {
+        int h = pos;
+        h = 31 * h + line;
+        h = 31 * h + token;
+        return 2 * h + (line_start ? 1 : 0);
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    @Override public String toString()
+    {
+        return "LexerState(pos: " + pos + ", line: " + line + ", token: " + token
+            + (line_start ? ", line start" : "") + ")";
+    }
+
+    // ---------------------------------------------------------------------------------------------
+}
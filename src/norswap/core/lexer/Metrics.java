@@ -0,0 +1,279 @@
+package norswap.core.lexer;
+
+import java.util.Arrays;
+
+/**
+ * Optional instrumentation of {@link Lexer#lex}, {@link Lexer#lex_compact}, {@link
+ * Lexer#lex_result}, {@link Lexer#stats} and {@link Tokens#synchronize}.
+ * <p>
+ * When no listener is registered (the default), the only cost is a volatile read per call.
+ * Otherwise, every registered {@link Listener} is notified when a call starts, then the call is
+ * timed and its output is scanned once to compute a {@link Sample}, which is passed to the same
+ * listeners.
+ * <p>
+ * Use {@link #enable_flight_recorder()} to emit the samples as JDK Flight Recorder events.
+ */
+public final class Metrics
+{
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * The instrumented operations: {@code LEX} covers all the lexing methods that produce tokens,
+     * {@code STATS} covers {@link Lexer#stats}.
+     */
+    public enum Operation { LEX, SYNCHRONIZE, STATS }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Receives the samples. Listeners are called synchronously on the thread that performs the
+     * operation, and must therefore be thread-safe and cheap.
+     */
+    public interface Listener
+    {
+        /**
+         * Called before an operation starts. The returned value (null by default) is passed back
+         * to {@link #on_sample} once the operation is finished.
+         */
+        default Object on_begin (Operation operation) {
+            return null;
+        }
+
+        /**
+         * Called after an operation, with the value returned by {@link #on_begin} for it.
+         */
+        void on_sample (Sample sample, Object context);
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Measurements for a single call to an instrumented operation.
+     */
+    public static final class Sample
+    {
+        /** The operation that was measured. */
+        public final Operation operation;
+
+        /** Number of input chars (for lexing) or output chars (for synchronization). */
+        public final int chars;
+
+        /** Number of tokens produced or consumed (including EOF). */
+        public final int tokens;
+
+        /** Number of tokens of each kind, indexed by {@link Tokens.Kind#ordinal()}. */
+        public final int[] kind_counts;
+
+        /** Total number of chars in garbage tokens. */
+        public final int garbage_chars;
+
+        /** Wall time of the operation, in nanoseconds. */
+        public final long nanos;
+
+        Sample (Operation operation, int chars, int tokens, int[] kind_counts,
+                int garbage_chars, long nanos)
+        {
+            this.operation      = operation;
+            this.chars          = chars;
+            this.tokens         = tokens;
+            this.kind_counts    = kind_counts;
+            this.garbage_chars  = garbage_chars;
+            this.nanos          = nanos;
+        }
+
+        /** Number of tokens of the given kind. */
+        public int count (Tokens.Kind kind) {
+            return kind_counts[kind.ordinal()];
+        }
+
+        /** Throughput in chars per second. */
+        public double chars_per_second() {
+            return nanos == 0 ? 0 : chars * 1e9 / nanos;
+        }
+
+        /** Throughput in tokens per second. */
+        public double tokens_per_second() {
+            return nanos == 0 ? 0 : tokens * 1e9 / nanos;
+        }
+
+        @Override public String toString() {
+            return operation + ": " + chars + " chars, " + tokens + " tokens, "
+                + garbage_chars + " garbage chars, "
+                + (nanos / 1000) + " us";
+        }
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    private static final Listener[] NONE = new Listener[0];
+
+    /** Copy-on-write array of listeners. */
+    private static volatile Listener[] listeners = NONE;
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Registers a listener, which will receive all samples until it is removed.
+     */
+    public static synchronized void add_listener (Listener listener)
+    {
+        Listener[] ls = Arrays.copyOf(listeners, listeners.length + 1);
+        ls[ls.length - 1] = listener;
+        listeners = ls;
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Unregisters a listener. When the last listener is removed, instrumentation is disabled.
+     */
+    public static synchronized void remove_listener (Listener listener)
+    {
+        Listener[] ls = listeners;
+        for (int i = 0; i < ls.length; ++ i) {
+            if (ls[i] != listener) continue;
+            Listener[] out = new Listener[ls.length - 1];
+            System.arraycopy(ls, 0, out, 0, i);
+            System.arraycopy(ls, i + 1, out, i, ls.length - i - 1);
+            listeners = out.length == 0 ? NONE : out;
+            return;
+        }
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    private static Listener flight_recorder;
+
+    /**
+     * Registers a listener that records each operation as a JDK Flight Recorder event (named
+     * {@code norswap.core.lexer.Lex}, {@code norswap.core.lexer.Synchronize} or {@code
+     * norswap.core.lexer.Stats}), spanning the operation. The events are only recorded if enabled
+     * in the active recording settings.
+     * <p>
+     * Calling this method multiple times has no further effect.
+     *
+     * @throws UnsupportedOperationException if the JVM does not provide the {@code jdk.jfr} API
+     */
+    public static synchronized void enable_flight_recorder()
+    {
+        if (flight_recorder != null) return;
+        try {
+            flight_recorder = new FlightRecorder();
+        }
+        catch (ReflectiveOperationException | LinkageError e) {
+            throw new UnsupportedOperationException("the jdk.jfr API is not available", e);
+        }
+        add_listener(flight_recorder);
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Whether at least one listener is registered.
+     */
+    public static boolean enabled()
+    {
+        return listeners.length != 0;
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * An operation in progress, along with the listeners notified of its start.
+     */
+    static final class Probe
+    {
+        final Operation operation;
+        final Listener[] listeners;
+        final Object[] contexts;
+        long start;
+
+        private Probe (Operation operation, Listener[] listeners)
+        {
+            this.operation = operation;
+            this.listeners = listeners;
+            this.contexts  = new Object[listeners.length];
+        }
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Notifies the listeners that an operation is starting, and starts timing it.
+     */
+    static Probe begin (Operation operation)
+    {
+        Probe probe = new Probe(operation, listeners);
+        for (int i = 0; i < probe.listeners.length; ++ i)
+            probe.contexts[i] = probe.listeners[i].on_begin(operation);
+        probe.start = System.nanoTime();
+        return probe;
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Reports an operation that has just finished, over {@code chars} chars and producing or
+     * consuming {@code tokens}, to the listeners notified by {@link #begin}.
+     */
+    static void end (Probe probe, int chars, Tokens.Token[] tokens)
+    {
+        long nanos = System.nanoTime() - probe.start;
+        int[] counts = new int[Tokens.Kind.VALUES.length];
+        int garbage_chars = 0;
+
+        for (Tokens.Token token: tokens) {
+            Tokens.Kind kind = token.kind();
+            ++ counts[kind.ordinal()];
+            if (kind == Tokens.Kind.GARBAGE)
+                garbage_chars += ((Tokens.Garbage) token).str.length();
+        }
+
+        end(probe, new Sample(
+            probe.operation, chars, tokens.length, counts, garbage_chars, nanos));
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Same as {@link #end(Probe, int, Tokens.Token[])}, for a token sequence.
+     */
+    static void end (Probe probe, int chars, TokenSequence tokens)
+    {
+        long nanos = System.nanoTime() - probe.start;
+        int[] counts = new int[Tokens.Kind.VALUES.length];
+        int garbage_chars = 0;
+        int size = tokens.size();
+
+        for (int i = 0; i < size; ++ i) {
+            Tokens.Kind kind = tokens.kind(i);
+            ++ counts[kind.ordinal()];
+            if (kind == Tokens.Kind.GARBAGE)
+                garbage_chars += tokens.len(i);
+        }
+
+        end(probe, new Sample(probe.operation, chars, size, counts, garbage_chars, nanos));
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Same as {@link #end(Probe, int, Tokens.Token[])}, for statistics computed instead of tokens.
+     */
+    static void end (Probe probe, int chars, LexStats stats)
+    {
+        long nanos = System.nanoTime() - probe.start;
+        end(probe, new Sample(probe.operation, chars, stats.tokens, stats.kind_counts.clone(),
+            stats.garbage_chars, nanos));
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    private static void end (Probe probe, Sample sample)
+    {
+        for (int i = 0; i < probe.listeners.length; ++ i)
+            probe.listeners[i].on_sample(sample, probe.contexts[i]);
+    }
+
+    // ---------------------------------------------------------------------------------------------
+}
@@ -0,0 +1,326 @@
+package norswap.core.lexer;
+
+import java.io.IOException;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+
+/**
+ * A token stream stored outside of the Java heap, for inputs too large for the heap budget.
+ * <p>
+ * The input is a file that is memory-mapped and read as single-byte characters (ISO-8859-1, which
+ * includes ASCII; see the "Internationalization" section of {@code README.md}). It is lexed through
+ * a small sliding window, so it is never copied to the heap.
+ * <p>
+ * The store only records the kind (one byte) and the start position (four bytes) of each token, in
+ * chunks of direct memory or of a memory-mapped backing file. Payloads are not stored: {@link
+ * #token(int)} re-materializes the token from its text in the mapped input.
+ * <p>
+ * Since positions are ints (like {@link Tokens.Token#pos}), the input is limited to
+ * {@code Integer.MAX_VALUE - 1} chars.
+ * <p>
+ * {@link #close()} releases the memory and mappings eagerly (when the JVM allows it, otherwise they
+ * are released when garbage-collected). The store must not be used after being closed, and it must
+ * not be closed while other threads are reading it. Reads are otherwise thread-safe.
+ */
+public final class OffHeapTokens implements TokenSequence, AutoCloseable
+{
+    // ---------------------------------------------------------------------------------------------
+
+    /** Number of tokens per chunk. */
+    private static final int CHUNK_SHIFT = 20;
+    private static final int CHUNK = 1 << CHUNK_SHIFT;
+    private static final int CHUNK_MASK = CHUNK - 1;
+
+    /** Size of a chunk, which holds {@link #CHUNK} kinds followed by {@link #CHUNK} positions. */
+    private static final int CHUNK_BYTES = 5 * CHUNK;
+
+    // ---------------------------------------------------------------------------------------------
+
+    private ByteBuffer source;
+    private final int source_len;
+
+    /** File channel to the backing file, or null if the chunks are allocated in direct memory. */
+    private final FileChannel backing;
+
+    private ByteBuffer[] chunks = new ByteBuffer[8];
+    private int size;
+
+    /** End position of the EOF token. */
+    private int end;
+
+    // ---------------------------------------------------------------------------------------------
+
+    private OffHeapTokens (ByteBuffer source, FileChannel backing)
+    {
+        this.source = source;
+        this.source_len = source.limit();
+        this.backing = backing;
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Lexes the file at {@code source}, storing the tokens in direct memory.
+     */
+    public static OffHeapTokens lex (Path source) throws IOException
+    {
+        return lex(source, null);
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Lexes the file at {@code source}, storing the tokens in a memory-mapped file at
+     * {@code backing} (created or overwritten), or in direct memory if {@code backing} is null.
+     * <p>
+     * A file-backed store lets the OS page the tokens out under memory pressure. The content of the
+     * backing file is unspecified after the store is closed.
+     */
+    public static OffHeapTokens lex (Path source, Path backing) throws IOException
+    {
+        MappedByteBuffer mapped;
+        try (FileChannel channel = FileChannel.open(source, StandardOpenOption.READ)) {
+            if (channel.size() >= Integer.MAX_VALUE)
+                throw new IllegalArgumentException("input too large: " + channel.size());
+            mapped = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        }
+
+        FileChannel channel = backing == null ? null : FileChannel.open(backing,
+            StandardOpenOption.CREATE,
+            StandardOpenOption.TRUNCATE_EXISTING,
+            StandardOpenOption.READ,
+            StandardOpenOption.WRITE);
+
+        OffHeapTokens tokens = new OffHeapTokens(mapped, channel);
+        try {
+            tokens.lex();
+            return tokens;
+        }
+        catch (IOException | RuntimeException | Error e) {
+            tokens.close();
+            throw e;
+        }
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Lexes the input through the window of a scanner (see {@link Scanner#source}).
+     */
+    private void lex() throws IOException
+    {
+        Scanner scanner = new Scanner(new Latin1(source, 0, source_len), 0, source_len, 0);
+
+        while (true)
+        {
+            Tokens.Kind kind = scanner.next();
+            add(kind, scanner.start + scanner.offset);
+
+            if (kind == Tokens.Kind.EOF) {
+                end = scanner.end + scanner.offset;
+                return;
+            }
+        }
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * A view of a range of a byte buffer as single-byte characters.
+     */
+    private static final class Latin1 implements CharSequence
+    {
+        private final ByteBuffer bytes;
+        private final int start, end;
+
+        Latin1 (ByteBuffer bytes, int start, int end)
+        {
+            this.bytes = bytes;
+            this.start = start;
+            this.end = end;
+        }
+
+        @Override public int length() {
+            return end - start;
+        }
+
+        @Override public char charAt (int i) {
+            return (char) (bytes.get(start + i) & 0xFF);
+        }
+
+        @Override public CharSequence subSequence (int from, int to) {
+            return new Latin1(bytes, start + from, start + to);
+        }
+
+        @Override public String toString()
+        {
+            char[] chars = new char[length()];
+            for (int i = 0; i < chars.length; ++ i) chars[i] = charAt(i);
+            return new String(chars);
+        }
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    private void add (Tokens.Kind kind, int pos) throws IOException
+    {
+        int c = size >>> CHUNK_SHIFT;
+        int j = size & CHUNK_MASK;
+
+        if (j == 0) {
+            if (c == chunks.length)
+                chunks = Arrays.copyOf(chunks, c * 2);
+            chunks[c] = allocate(c);
+        }
+
+        ByteBuffer chunk = chunks[c];
+        chunk.put(j, (byte) kind.ordinal());
+        chunk.putInt(CHUNK + (j << 2), pos);
+        ++ size;
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    private ByteBuffer allocate (int c) throws IOException
+    {
+        ByteBuffer chunk = backing == null
+            ? ByteBuffer.allocateDirect(CHUNK_BYTES)
+            : backing.map(FileChannel.MapMode.READ_WRITE, (long) c * CHUNK_BYTES, CHUNK_BYTES);
+        return chunk.order(ByteOrder.nativeOrder());
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    private ByteBuffer chunk (int i)
+    {
+        if (i < 0 || i >= size)
+            throw new IndexOutOfBoundsException("index " + i + ", size " + size);
+        return chunks[i >>> CHUNK_SHIFT];
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    @Override public int size()
+    {
+        return size;
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    @Override public Tokens.Kind kind (int i)
+    {
+        return Tokens.Kind.VALUES[chunk(i).get(i & CHUNK_MASK)];
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    @Override public int pos (int i)
+    {
+        return chunk(i).getInt(CHUNK + ((i & CHUNK_MASK) << 2));
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    @Override public int len (int i)
+    {
+        return (i + 1 == size ? end : pos(i + 1)) - pos(i);
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * {@inheritDoc}
+     * <p>
+     * The token is materialized from the input on each call, and has its position set.
+     */
+    @Override public Tokens.Token token (int i)
+    {
+        Tokens.Kind kind = kind(i);
+        int pos = pos(i);
+        int len = len(i);
+
+        if (kind == Tokens.Kind.EOF)
+            return Lexer.materialize(kind, new char[0], 0, 0, false, pos);
+
+        char[] text = new char[len];
+        for (int k = 0; k < len; ++ k)
+            text[k] = (char) (source.get(pos + k) & 0xFF);
+
+        boolean line_start = pos == 0 || source.get(pos - 1) == '\n';
+        return Lexer.materialize(kind, text, 0, len, line_start, pos);
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Same as {@link #token(int)}, as the returned token is already a fresh copy.
+     */
+    @Override public Tokens.Token copy (int i)
+    {
+        return token(i);
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Releases the memory holding the tokens, as well as the mapping of the input (and of the
+     * backing file, if any).
+     */
+    @Override public void close() throws IOException
+    {
+        if (source == null) return;
+        free(source);
+        source = null;
+        for (int c = 0; c < chunks.length && chunks[c] != null; ++ c)
+            free(chunks[c]);
+        chunks = new ByteBuffer[0];
+        size = 0;
+        if (backing != null) backing.close();
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /** {@code sun.misc.Unsafe#invokeCleaner}, if available (Java 9+). */
+    private static final Method INVOKE_CLEANER;
+    private static final Object UNSAFE;
+
+    static {
+        Method method = null;
+        Object unsafe = null;
+        try {
+            Class<?> klass = Class.forName("sun.misc.Unsafe");
+            Field field = klass.getDeclaredField("theUnsafe");
+            field.setAccessible(true);
+            unsafe = field.get(null);
+            method = klass.getMethod("invokeCleaner", ByteBuffer.class);
+        }
+        catch (Exception e) {
+            // not available: rely on the garbage collector
+        }
+        INVOKE_CLEANER = method;
+        UNSAFE = unsafe;
+    }
+
+    /**
+     * Eagerly releases the memory (or mapping) of a direct buffer, if the JVM allows it.
+     */
+    private static void free (ByteBuffer buffer)
+    {
+        if (INVOKE_CLEANER == null) return;
+        try {
+            INVOKE_CLEANER.invoke(UNSAFE, buffer);
+        }
+        catch (Exception e) {
+            // rely on the garbage collector
+        }
+    }
+
+    // ---------------------------------------------------------------------------------------------
+}
@@ -60,6 +60,32 @@ public final class Predicates
 
     // ---------------------------------------------------------------------------------------------
 
+    /**
+     * True iff code point {@code cp} is allowed at the start of an identifier token when Unicode
+     * identifiers are enabled (see {@link LexerOptions#unicode_identifiers}).
+     */
+    public static boolean is_unicode_id_start (int cp)
+    {
+        return cp < 0x80
+            ? is_id_start((char) cp)
+            : Character.isUnicodeIdentifierStart(cp);
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * True iff code point {@code cp} is allowed inside an identifier token when Unicode
+     * identifiers are enabled (see {@link LexerOptions#unicode_identifiers}).
+     */
+    public static boolean is_unicode_id_char (int cp)
+    {
+        return cp < 0x80
+            ? is_id_char((char) cp)
+            : Character.isUnicodeIdentifierPart(cp) && !Character.isIdentifierIgnorable(cp);
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
     /**
      * True iff {@code c} is an operator character (see {@code README.md}).
      */
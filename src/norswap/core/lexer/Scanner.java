@@ -0,0 +1,563 @@
+package norswap.core.lexer;
+
+import norswap.core.lexer.Tokens.Kind;
+import java.nio.CharBuffer;
+
+/**
+ * The state machine behind {@link Lexer#lex}: successive calls to {@link #next()} recognize the
+ * tokens of the input one by one, recording their kind and span, but without materializing them.
+ * <p>
+ * Where the lexer is specified in terms of the previously emitted tokens (garbage compaction,
+ * block comments swallowing the preceding spaces), the scanner uses a little bit of state and
+ * lookahead instead, so that no token history is needed.
+ */
+final class Scanner
+{
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Size of the window through which inputs without a nul terminator in place are lexed (see
+     * {@link #source}).
+     */
+    static final int WINDOW = 1 << 14;
+
+    // ---------------------------------------------------------------------------------------------
+
+    /** Input buffer, which always holds a nul character at {@link #limit}. */
+    char[] buf;
+
+    /** Index in {@link #buf} at which the input (or the window) ends. */
+    int limit;
+
+    /** Offset to add to indices in {@link #buf} to get input positions. */
+    int offset;
+
+    /**
+     * The input: either a wrapper around {@link #buf}, or a sequence that is lexed through a
+     * window, in which case {@link #buf} holds a copy of part of it, terminated by a nul sentinel.
+     * <p>
+     * In the second case, the window is moved (and enlarged if needed) whenever a token reads the
+     * sentinel before the end of the input, and the token is scanned again. The text of the last
+     * scanned token is always in {@link #buf}.
+     */
+    final CharSequence source;
+
+    /** Index in {@link #source} of {@code buf[0]}. */
+    int base;
+
+    /** Whether {@link #buf} is a window over {@link #source}. */
+    private final boolean windowed;
+
+    /** Index in {@link #source} at which the input ends. */
+    private final int source_end;
+
+    /** Offset to add to indices in {@link #source} to get input positions. */
+    private final int source_offset;
+
+    /** Start position of the next token. */
+    int pos;
+
+    /** Whether the last token was a line demarcator (newline, comment, or none at all). */
+    boolean line_start = true;
+
+    /**
+     * Whether comment content is skipped: comment tokens are still recognized, but do not retain
+     * the input to split their lines from.
+     */
+    boolean skip_comments;
+
+    /** Whether identifiers may contain non-ASCII characters. */
+    boolean unicode_ids;
+
+    /**
+     * Set whenever a scanned token might extend past {@link #limit}, i.e. when it (or the
+     * lookahead that ended it) reaches the sentinel.
+     */
+    boolean hit_limit;
+
+    /**
+     * Position of the first string (resp. char) literal quote found to be unterminated, or
+     * {@code Integer.MAX_VALUE}. All later quotes of the same kind are unterminated as well, as
+     * the scan from the first one reads them as escaped, and from there on both scans coincide.
+     * Without this, an input with many unterminated quotes would be scanned in quadratic time.
+     */
+    private int unterminated_string = Integer.MAX_VALUE, unterminated_char = Integer.MAX_VALUE;
+
+    // ---------------------------------------------------------------------------------------------
+    // Description of the last scanned token.
+
+    /** Kind of the last scanned token. */
+    Kind kind;
+
+    /** Start position of the last scanned token. */
+    int start;
+
+    /** End position (exclusive) of the last scanned token. */
+    int end;
+
+    /** Whether the last comment is a block comment. */
+    boolean block;
+
+    /** Alignment of the last comment. */
+    int align;
+
+    /** Number of lines in the last comment. */
+    int lines;
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Creates a scanner over {@code buf[start:limit]}, reporting positions as indices in
+     * {@code buf} plus {@code offset}.
+     * <p>
+     * If {@code buf[limit]} is a nul character, the array is scanned in place. Otherwise, it is
+     * lexed through a window (see {@link #source}).
+     */
+    Scanner (char[] buf, int start, int limit, int offset)
+    {
+        if (start < 0 || limit < start || limit > buf.length)
+            throw new IndexOutOfBoundsException(
+                "range [" + start + ", " + limit + ") of array of length " + buf.length);
+
+        this.source = CharBuffer.wrap(buf);
+        this.source_end = limit;
+        this.source_offset = offset;
+
+        if (limit < buf.length && buf[limit] == '\0') {
+            this.windowed = false;
+            this.buf = buf;
+            this.pos = start;
+            this.limit = limit;
+            this.offset = offset;
+        }
+        else {
+            this.windowed = true;
+            this.buf = new char[Math.min(WINDOW, limit - start) + 1];
+            fill(start);
+        }
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Creates a scanner over {@code source[start:end]}, lexed through a window (see {@link
+     * #source}), reporting positions as indices in {@code source} plus {@code offset}.
+     */
+    Scanner (CharSequence source, int start, int end, int offset)
+    {
+        if (start < 0 || end < start || end > source.length())
+            throw new IndexOutOfBoundsException(
+                "range [" + start + ", " + end + ") of sequence of length " + source.length());
+
+        this.source = source;
+        this.source_end = end;
+        this.source_offset = offset;
+        this.windowed = true;
+        this.buf = new char[Math.min(WINDOW, end - start) + 1];
+        fill(start);
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Copies the input starting at index {@code from} of {@link #source} to the window, and
+     * positions the scanner at the start of the window.
+     */
+    private void fill (int from)
+    {
+        int n = Math.min(buf.length - 1, source_end - from);
+        Lexer.get_chars(source, from, from + n, buf, 0);
+        buf[n] = '\0';
+        base = from;
+        limit = n;
+        offset = from + source_offset;
+        pos = 0;
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Returns a snapshot of the scanner state before the next token, recording the given line and
+     * token counts.
+     */
+    LexerState state (int line, int token)
+    {
+        return new LexerState(pos + offset, line, token, line_start);
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Restores a state obtained from {@link #state} on the same input.
+     */
+    void restore (LexerState state)
+    {
+        if (windowed) {
+            int from = state.pos - source_offset;
+            if (from < 0 || from > source_end)
+                throw new IndexOutOfBoundsException(
+                    "state position " + state.pos + " outside of input [" + source_offset + ", "
+                    + (source_end + source_offset) + "]");
+            fill(from);
+        }
+        else {
+            int pos = state.pos - offset;
+            if (pos < 0 || pos > limit)
+                throw new IndexOutOfBoundsException(
+                    "state position " + state.pos + " outside of input [" + offset + ", "
+                    + (limit + offset) + "]");
+            this.pos = pos;
+        }
+        this.line_start = state.line_start;
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Returns the character at index {@code i} in the buffer, which is at most {@link #limit}: all
+     * loops stop at the nul sentinel, and lookahead only ever follows a non-nul character.
+     */
+    char at (int i)
+    {
+        return buf[i];
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Scans the next token and returns its kind. The EOF token must be the last one scanned.
+     */
+    Kind next()
+    {
+        if (!windowed) return scan();
+
+        int pos = this.pos;
+        boolean line_start = this.line_start;
+
+        while (true) {
+            hit_limit = false;
+            Kind kind = scan();
+            if (!hit_limit || base + limit == source_end) return kind;
+
+            // the token might extend past the window: move the window to the token, enlarging it
+            // if the token already starts the window, and scan the token again
+            if (pos == 0) {
+                int size = Math.max(2 * (buf.length - 1), end + 2);
+                buf = new char[Math.min(size, source_end - base) + 1];
+            }
+            fill(base + pos);
+            pos = 0;
+            this.line_start = line_start;
+        }
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    private Kind scan()
+    {
+        int pos = start = this.pos;
+        char c = at(pos);
+
+        switch (c)
+        {
+            case '\0':
+
+                return finish(Kind.EOF, pos + 1);
+
+            case ' ':
+
+                pos = scan_spaces(pos);
+                if (line_start && at(pos) == '/' && at(pos + 1) == '/')
+                    return finish(Kind.COMMENT, scan_comment(start, pos - start, true));
+                return finish(Kind.SPACES, pos);
+
+            case '\n':
+
+                return finish(Kind.NEWLINE, pos + 1);
+
+            case 'a': case 'b': case 'c': case 'd': case 'e': case 'f': case 'g':
+            case 'h': case 'i': case 'j': case 'k': case 'l': case 'm': case 'n':
+            case 'o': case 'p': case 'q': case 'r': case 's': case 't': case 'u':
+            case 'v': case 'w': case 'x': case 'y': case 'z':
+            case 'A': case 'B': case 'C': case 'D': case 'E': case 'F': case 'G':
+            case 'H': case 'I': case 'J': case 'K': case 'L': case 'M': case 'N':
+            case 'O': case 'P': case 'Q': case 'R': case 'S': case 'T': case 'U':
+            case 'V': case 'W': case 'X': case 'Y': case 'Z':
+            case '_':
+
+                return finish(Kind.IDENTIFIER, scan_id(pos));
+
+            case '/':
+
+                if (at(pos + 1) == '/')
+                    return finish(Kind.COMMENT, scan_comment(pos, 0, line_start));
+                return finish(Kind.OPERATOR, scan_operator(pos));
+
+            case '(': case ')':
+            case '{': case '}':
+            case '[': case ']':
+
+                return finish(Kind.BRACKET, pos + 1);
+
+            case '!': case '$': case '%': case '&': case '*': case '+': case ',':
+            case '-': case '.': case ':': case ';': case '<': case '=': case '>':
+            case '?': case '@': case '^': case '`': case '|': case '~': case '\\':
+
+                return finish(Kind.OPERATOR, scan_operator(pos));
+
+            case '0': case '1': case '2': case '3': case '4':
+            case '5': case '6': case '7': case '8': case '9':
+
+                return finish(Kind.INT_LITERAL, scan_int_literal(pos));
+
+            case '"': case '\'':
+
+                int end = scan_literal(pos, c);
+                if (end >= 0)
+                    return finish(c == '"' ? Kind.STRING_LITERAL : Kind.CHAR_LITERAL, end);
+                return finish(Kind.GARBAGE, scan_garbage(pos + 1));
+
+            default:
+
+                if (unicode_ids && c >= 0x80 && Predicates.is_unicode_id_start(code_point(pos)))
+                    return finish(Kind.IDENTIFIER, scan_unicode_id(pos));
+                return finish(Kind.GARBAGE, scan_garbage(pos + 1));
+        }
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    private Kind finish (Kind kind, int end)
+    {
+        if (end + 1 >= limit) hit_limit = true;
+        this.kind = kind;
+        this.end = end;
+        this.pos = end;
+        line_start = kind == Kind.NEWLINE || kind == Kind.COMMENT;
+        return kind;
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    private int scan_spaces (int pos)
+    {
+        char c = at(pos);
+        while (c == ' ') c = at(++ pos);
+        return pos;
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    private int scan_id (int pos)
+    {
+        char c;
+        while (Predicates.is_id_char(c = at(pos))) ++ pos;
+        return unicode_ids && c >= 0x80 ? scan_unicode_id(pos) : pos;
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Slow path of {@link #scan_id} for Unicode identifiers, taken on the first non-ASCII char.
+     */
+    private int scan_unicode_id (int pos)
+    {
+        while (true) {
+            int cp = code_point(pos);
+            if (!Predicates.is_unicode_id_char(cp)) return pos;
+            pos += Character.charCount(cp);
+        }
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Returns the code point at index {@code i}: a supplementary code point if a surrogate pair
+     * starts there, the char at {@code i} otherwise.
+     */
+    private int code_point (int i)
+    {
+        char c = at(i);
+        if (Character.isHighSurrogate(c)) {
+            char d = at(i + 1);
+            if (Character.isLowSurrogate(d)) return Character.toCodePoint(c, d);
+        }
+        return c;
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Scans a comment starting at {@code pos}, where the comment delimiter is found after
+     * {@code align} spaces.
+     */
+    private int scan_comment (int pos, int align, boolean block)
+    {
+        this.block = block;
+        this.align = align;
+        lines = 0;
+
+        while (true) {
+            int line_start = pos;
+
+            // skip leading space
+            char c = at(pos);
+            while (c == ' ') c = at(++ pos);
+
+            // check alignment & comment syntax
+            if (pos - line_start != align || c != '/' || at(pos + 1) != '/') {
+                if (pos + 1 >= limit) hit_limit = true;
+                pos = line_start;
+                break;
+            }
+            pos = skip_line(pos + 2);
+            ++ lines;
+
+            if (!block) break;
+        }
+
+        return pos;
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Returns the index following the first newline at or after {@code pos}, or the index of the
+     * first nul character if it comes first.
+     * <p>
+     * Comment lines are only delimited here: their content is split on demand (see {@link
+     * Tokens.Comment#lines()}). This is a tight loop over the buffer, as comments (license
+     * headers, doc blocks) make up a large fraction of typical inputs.
+     */
+    private int skip_line (int pos)
+    {
+        char[] buf = this.buf;
+
+        while (true) {
+            char c = buf[pos];
+            if (c == '\n') return pos + 1;
+            if (c == '\0') return pos;
+            ++ pos;
+        }
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    private int scan_operator (int pos)
+    {
+        char c = at(pos);
+        char d;
+        while (Predicates.is_operator(c)) {
+            d = at(++ pos);
+            if (c == '/' && d == '/') return pos - 1;
+            c = d;
+        }
+        return pos;
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Scans the digits of an int literal. Its value is decoded on demand (see {@link
+     * Tokens.IntLiteral}), so literals of any length are a single token.
+     */
+    private int scan_int_literal (int pos)
+    {
+        while (Predicates.is_digit(at(pos))) ++ pos;
+        return pos;
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Scans a string or char literal delimited by {@code quote}, returning its end position or -1
+     * if the literal is not terminated.
+     */
+    private int scan_literal (int pos, char quote)
+    {
+        int start = pos;
+        if (pos + offset >= (quote == '"' ? unterminated_string : unterminated_char))
+            return -1;
+
+        char c = at(++ pos);
+
+        while (c != quote && c != 0) {
+            if (c == '\\') {
+                c = at(++ pos);
+                if (c == 0) break;
+            }
+            c = at(++ pos);
+        }
+
+        if (c != 0) return pos + 1;
+
+        if (pos == limit && base + limit < source_end) {
+            // window sentinel: if the literal is terminated, its end lies past the window
+            int end = scan_literal_source(start + base, quote);
+            if (end >= 0) return end - base;
+        }
+
+        if (quote == '"')
+            unterminated_string = start + offset;
+        else
+            unterminated_char = start + offset;
+        return -1;
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Same as {@link #scan_literal}, but reads the literal starting at index {@code i} of
+     * {@link #source}, and returns its end index in {@link #source}.
+     */
+    private int scan_literal_source (int i, char quote)
+    {
+        while (++ i < source_end) {
+            char c = source.charAt(i);
+            if (c == quote) return i + 1;
+            if (c == 0) break;
+            if (c == '\\' && (++ i == source_end || source.charAt(i) == 0)) break;
+        }
+        return -1;
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Extends a garbage string up to {@code pos} with all following characters that cannot start
+     * a token, and returns the end position of the string.
+     */
+    private int scan_garbage (int pos)
+    {
+        while (true) {
+            char c = at(pos);
+            switch (c) {
+                case '"': case '\'':
+                    if (scan_literal(pos, c) >= 0) return pos;
+                    ++ pos;
+                    break;
+                default:
+                    if (c == 0 || starts_token(c)) return pos;
+                    if (unicode_ids && c >= 0x80 && Predicates.is_unicode_id_start(code_point(pos)))
+                        return pos;
+                    ++ pos;
+            }
+        }
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Whether {@code c} is always the start of a non-garbage token.
+     */
+    private static boolean starts_token (char c)
+    {
+        return c == ' ' || c == '\n'
+            || Predicates.is_id_start(c)
+            || Predicates.is_digit(c)
+            || Predicates.is_operator(c)
+            || c == '(' || c == ')' || c == '{' || c == '}' || c == '[' || c == ']';
+    }
+
+    // ---------------------------------------------------------------------------------------------
+}
@@ -0,0 +1,80 @@
+package norswap.core.lexer;
+
+import java.util.Spliterator;
+import java.util.function.Consumer;
+
+/**
+ * A spliterator over an index range of a {@link TokenSequence}, which splits by halving the
+ * range. It is {@link #IMMUTABLE} unless the sequence can be modified.
+ */
+final class SequenceSpliterator implements Spliterator<Tokens.Token>
+{
+    // ---------------------------------------------------------------------------------------------
+
+    private final TokenSequence sequence;
+
+    /** Index of the next token. */
+    private int index;
+
+    /** Index past the last token. */
+    private final int fence;
+
+    /** Whether the sequence cannot be modified. */
+    private final boolean immutable;
+
+    // ---------------------------------------------------------------------------------------------
+
+    SequenceSpliterator (TokenSequence sequence, int index, int fence, boolean immutable)
+    {
+        this.sequence = sequence;
+        this.index = index;
+        this.fence = fence;
+        this.immutable = immutable;
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    @Override public boolean tryAdvance (Consumer<? super Tokens.Token> action)
+    {
+        if (index >= fence) return false;
+        action.accept(sequence.token(index++));
+        return true;
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    @Override public void forEachRemaining (Consumer<? super Tokens.Token> action)
+    {
+        int i = index;
+        index = fence;
+        for (; i < fence; ++ i)
+            action.accept(sequence.token(i));
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    @Override public Spliterator<Tokens.Token> trySplit()
+    {
+        int mid = (index + fence) >>> 1;
+        if (mid <= index) return null;
+        SequenceSpliterator prefix = new SequenceSpliterator(sequence, index, mid, immutable);
+        index = mid;
+        return prefix;
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    @Override public long estimateSize()
+    {
+        return fence - index;
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    @Override public int characteristics()
+    {
+        return ORDERED | SIZED | SUBSIZED | NONNULL | (immutable ? IMMUTABLE : 0);
+    }
+
+    // ---------------------------------------------------------------------------------------------
+}
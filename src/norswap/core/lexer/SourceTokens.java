@@ -0,0 +1,85 @@
+package norswap.core.lexer;
+
+/**
+ * A token stream that only stores the kind and position of each token, and materializes the
+ * tokens on demand from the input they were lexed from.
+ */
+final class SourceTokens implements TokenSequence
+{
+    // ---------------------------------------------------------------------------------------------
+
+    private final char[] src;
+    private final int offset;
+    private final byte[] kinds;
+
+    /** Start position of each token in {@link #src}, followed by the end of the last token. */
+    private final int[] positions;
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Creates a token stream over the input {@code src}, where positions are indices in
+     * {@code src} plus {@code offset}.
+     */
+    SourceTokens (char[] src, int offset, byte[] kinds, int[] positions)
+    {
+        this.src = src;
+        this.offset = offset;
+        this.kinds = kinds;
+        this.positions = positions;
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    @Override public int size()
+    {
+        return kinds.length;
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    @Override public Tokens.Kind kind (int i)
+    {
+        return Tokens.Kind.VALUES[kinds[i]];
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    @Override public int pos (int i)
+    {
+        return positions[i] + offset;
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    @Override public int len (int i)
+    {
+        return positions[i + 1] - positions[i];
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * {@inheritDoc}
+     * <p>
+     * The token is materialized from the input on each call, and has its position set.
+     */
+    @Override public Tokens.Token token (int i)
+    {
+        int start = positions[i];
+        boolean line_start = i == 0 || src[start - 1] == '\n';
+        return Lexer.materialize(kind(i), src, start, positions[i + 1], line_start, offset);
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Same as {@link #token(int)}, as the returned token is already a fresh copy.
+     */
+    @Override public Tokens.Token copy (int i)
+    {
+        return token(i);
+    }
+
+    // ---------------------------------------------------------------------------------------------
+}
@@ -0,0 +1,180 @@
+package norswap.core.lexer;
+
+import java.nio.ByteBuffer;
+
+/**
+ * A compact binary encoding of the token streams returned by {@link Lexer#lex}.
+ * <p>
+ * The encoding relies on the fact that these token streams are contiguous and that the token
+ * payloads can be recovered from the input: it only records the kind and length of each token.
+ * Decoding therefore requires the input that the tokens were lexed from.
+ * <p>
+ * Format: the number of tokens as a varint, followed by one entry per token. The high nibble of
+ * the first byte of an entry is the token kind. The low nibble is the token length if smaller than
+ * 15, otherwise it is 15 and is followed by the length minus 15, as a varint.
+ */
+final class TokenCodec
+{
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Returns an upper bound on the encoded size of the given tokens.
+     */
+    static int max_size (Tokens.Token[] tokens)
+    {
+        // 1 byte per token and 5 bytes per long token
+        int size = 5;
+        for (Tokens.Token token: tokens)
+            size += token.len < 15 ? 1 : 6;
+        return size;
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Same as {@link #max_size(Tokens.Token[])}, for a token sequence.
+     */
+    static int max_size (TokenSequence tokens)
+    {
+        int size = 5;
+        for (int i = 0; i < tokens.size(); ++ i)
+            size += tokens.len(i) < 15 ? 1 : 6;
+        return size;
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Encodes the given tokens (as returned by {@link Lexer#lex}).
+     */
+    static byte[] encode (Tokens.Token[] tokens)
+    {
+        ByteBuffer out = ByteBuffer.allocate(max_size(tokens));
+        encode(tokens, out);
+        byte[] bytes = new byte[out.position()];
+        System.arraycopy(out.array(), 0, bytes, 0, bytes.length);
+        return bytes;
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Encodes the given tokens (as returned by {@link Lexer#lex}) to {@code out}, which must have
+     * at least {@link #max_size} bytes remaining.
+     */
+    static void encode (Tokens.Token[] tokens, ByteBuffer out)
+    {
+        put_varint(out, tokens.length);
+
+        for (Tokens.Token token: tokens) {
+            int kind = token.kind().ordinal() << 4;
+            if (token.len < 15) {
+                out.put((byte) (kind | token.len));
+            } else {
+                out.put((byte) (kind | 15));
+                put_varint(out, token.len - 15);
+            }
+        }
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Same as {@link #encode(Tokens.Token[], ByteBuffer)}, for a token sequence (as returned by
+     * {@link Lexer#lex_result}).
+     */
+    static void encode (TokenSequence tokens, ByteBuffer out)
+    {
+        int size = tokens.size();
+        put_varint(out, size);
+
+        for (int i = 0; i < size; ++ i) {
+            int kind = tokens.kind(i).ordinal() << 4;
+            int len = tokens.len(i);
+            if (len < 15) {
+                out.put((byte) (kind | len));
+            } else {
+                out.put((byte) (kind | 15));
+                put_varint(out, len - 15);
+            }
+        }
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Decodes tokens from {@code in}, which were lexed from the input {@code src} starting at
+     * index {@code start}. The positions of the tokens are set to their index in {@code src} plus
+     * {@code offset}.
+     * <p>
+     * Only the kinds and positions are decoded: the tokens are materialized from {@code src} when
+     * accessed.
+     *
+     * @throws IllegalArgumentException if the encoding is malformed or inconsistent with the input
+     */
+    static TokenSequence decode (ByteBuffer in, char[] src, int start, int offset)
+    {
+        try {
+            int count = get_varint(in);
+            if (count <= 0 || count > in.remaining())
+                throw new IllegalArgumentException("invalid token count: " + count);
+
+            byte[] kinds = new byte[count];
+            int[] positions = new int[count + 1];
+            int pos = start;
+
+            for (int i = 0; i < count; ++ i)
+            {
+                int b = in.get() & 0xFF;
+                int kind = b >>> 4;
+                int len = b & 15;
+                if (len == 15) len += get_varint(in);
+                if (kind >= Tokens.Kind.VALUES.length)
+                    throw new IllegalArgumentException("invalid token kind: " + kind);
+                if (len <= 0 || pos + len > src.length && i != count - 1)
+                    throw new IllegalArgumentException("token out of bounds: " + pos + "+" + len);
+
+                kinds[i] = (byte) kind;
+                positions[i] = pos;
+                pos += len;
+            }
+
+            positions[count] = pos;
+
+            if (kinds[count - 1] != Tokens.Kind.EOF.ordinal())
+                throw new IllegalArgumentException("missing EOF token");
+
+            return new SourceTokens(src, offset, kinds, positions);
+        }
+        catch (RuntimeException e) {
+            if (e instanceof IllegalArgumentException) throw e;
+            throw new IllegalArgumentException("malformed token encoding", e);
+        }
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    static void put_varint (ByteBuffer out, int value)
+    {
+        while ((value & ~0x7F) != 0) {
+            out.put((byte) ((value & 0x7F) | 0x80));
+            value >>>= 7;
+        }
+        out.put((byte) value);
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    static int get_varint (ByteBuffer in)
+    {
+        int value = 0;
+        for (int shift = 0; shift < 32; shift += 7) {
+            int b = in.get();
+            value |= (b & 0x7F) << shift;
+            if (b >= 0) return value;
+        }
+        throw new IllegalArgumentException("malformed varint");
+    }
+
+    // ---------------------------------------------------------------------------------------------
+}
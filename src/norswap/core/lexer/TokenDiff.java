@@ -0,0 +1,241 @@
+package norswap.core.lexer;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Computes a minimal edit script between two token streams, e.g. between the tokens of a file
+ * before and after an edit, so that incremental consumers only need to process the changed
+ * tokens.
+ * <p>
+ * Tokens are compared by kind and payload, ignoring their positions (as per {@link
+ * Tokens#equals(Tokens.Token, Tokens.Token, boolean)}), so that tokens shifted by an edit are
+ * considered unchanged. Each token is hashed once, and tokens are only compared when their
+ * hashes match.
+ * <p>
+ * The common prefix and suffix of the streams are trimmed first, so that the cost of a localized
+ * edit is proportional to the size of the change. The remainder is diffed using the linear-space
+ * variant of Myers' algorithm (E. Myers, "An O(ND) Difference Algorithm and Its Variations", 1986),
+ * which runs in O((N + M) D) time, where D is the size of the edit script.
+ */
+public final class TokenDiff
+{
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * A contiguous change: the tokens in [{@link #old_start}, {@link #old_end}) of the old stream
+     * are replaced by those in [{@link #new_start}, {@link #new_end}) of the new stream. Either
+     * range may be empty (pure insertion or deletion), but not both.
+     */
+    public static final class Edit
+    {
+        public final int old_start, old_end;
+        public final int new_start, new_end;
+
+        Edit (int old_start, int old_end, int new_start, int new_end) {
+            this.old_start = old_start;
+            this.old_end = old_end;
+            this.new_start = new_start;
+            this.new_end = new_end;
+        }
+
+        /** Number of tokens deleted from the old stream. */
+        public int deleted() {
+            return old_end - old_start;
+        }
+
+        /** Number of tokens inserted from the new stream. */
+        public int inserted() {
+            return new_end - new_start;
+        }
+
+        @Override public String toString() {
+            return "Edit(old: [" + old_start + ", " + old_end + "), new: ["
+                + new_start + ", " + new_end + "))";
+        }
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Returns the edits that turn {@code old_tokens} into {@code new_tokens}, in increasing order
+     * of position. Tokens not covered by an edit are unchanged (modulo position), and the edit
+     * script is minimal in number of token insertions and deletions.
+     */
+    public static List<Edit> diff (Tokens.Token[] old_tokens, Tokens.Token[] new_tokens)
+    {
+        int[] old_hashes = new int[old_tokens.length];
+        int[] new_hashes = new int[new_tokens.length];
+        for (int i = 0; i < old_hashes.length; ++ i)
+            old_hashes[i] = Tokens.hash(old_tokens[i], false);
+        for (int j = 0; j < new_hashes.length; ++ j)
+            new_hashes[j] = Tokens.hash(new_tokens[j], false);
+
+        return new TokenDiff(old_hashes, new_hashes,
+            (i, j) -> Tokens.equals(old_tokens[i], new_tokens[j], false)).run();
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Same as {@link #diff(Tokens.Token[], Tokens.Token[])} for token sequences, regardless of
+     * their representation.
+     */
+    public static List<Edit> diff (TokenSequence old_tokens, TokenSequence new_tokens)
+    {
+        int[] old_hashes = new int[old_tokens.size()];
+        int[] new_hashes = new int[new_tokens.size()];
+        for (int i = 0; i < old_hashes.length; ++ i)
+            old_hashes[i] = Tokens.payload_hash(old_tokens, i);
+        for (int j = 0; j < new_hashes.length; ++ j)
+            new_hashes[j] = Tokens.payload_hash(new_tokens, j);
+
+        return new TokenDiff(old_hashes, new_hashes,
+            (i, j) -> old_tokens.kind(i) == new_tokens.kind(j)
+                && Tokens.same_payload(old_tokens, i, new_tokens, j)).run();
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /** Compares the i-th old token to the j-th new token, once their hashes are known to match. */
+    private interface Comparator
+    {
+        boolean same (int i, int j);
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    private final int[] a, b;
+    private final Comparator comparator;
+
+    /** Marks the deleted old tokens and the inserted new tokens. */
+    private final boolean[] deleted, inserted;
+
+    // ---------------------------------------------------------------------------------------------
+
+    private TokenDiff (int[] a, int[] b, Comparator comparator)
+    {
+        this.a = a;
+        this.b = b;
+        this.comparator = comparator;
+        this.deleted = new boolean[a.length];
+        this.inserted = new boolean[b.length];
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    private boolean same (int i, int j)
+    {
+        return a[i] == b[j] && comparator.same(i, j);
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    private List<Edit> run()
+    {
+        diff(0, a.length, 0, b.length);
+
+        // group the marked tokens into edits
+        List<Edit> edits = new ArrayList<>();
+        int i = 0, j = 0;
+        while (i < a.length || j < b.length) {
+            if (i < a.length && j < b.length && !deleted[i] && !inserted[j]) {
+                ++ i; ++ j;
+                continue;
+            }
+            int i0 = i, j0 = j;
+            while (i < a.length && deleted[i]) ++ i;
+            while (j < b.length && inserted[j]) ++ j;
+            edits.add(new Edit(i0, i, j0, j));
+        }
+        return edits;
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Marks the tokens to delete from {@code a[a0:a1]} and insert from {@code b[b0:b1]}.
+     */
+    private void diff (int a0, int a1, int b0, int b1)
+    {
+        // trim common prefix and suffix
+        while (a0 < a1 && b0 < b1 && same(a0, b0)) { ++ a0; ++ b0; }
+        while (a0 < a1 && b0 < b1 && same(a1 - 1, b1 - 1)) { -- a1; -- b1; }
+
+        if (a0 == a1) {
+            for (int j = b0; j < b1; ++ j) inserted[j] = true;
+            return;
+        }
+        if (b0 == b1) {
+            for (int i = a0; i < a1; ++ i) deleted[i] = true;
+            return;
+        }
+
+        // Both ranges are non-empty and differ on their first and last tokens: the middle snake
+        // splits the problem into two smaller ones.
+        int[] snake = middle_snake(a0, a1, b0, b1);
+        diff(a0, snake[0], b0, snake[1]);
+        diff(snake[2], a1, snake[3], b1);
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Finds the middle snake of an optimal edit path between {@code a[a0:a1]} and
+     * {@code b[b0:b1]}, by running the search forward from the start and backward from the end
+     * until the two overlap. Returns the start and end points of the snake as
+     * {@code {x0, y0, x1, y1}} (absolute indices in {@code a} and {@code b}).
+     * <p>
+     * {@code vf[k]} is the furthest x reached on forward diagonal k (x - y = k), {@code vb[k]} the
+     * furthest distance from the end reached on backward diagonal k (in reversed coordinates). The
+     * forward diagonal k corresponds to the backward diagonal {@code delta - k}.
+     */
+    private int[] middle_snake (int a0, int a1, int b0, int b1)
+    {
+        int n = a1 - a0;
+        int m = b1 - b0;
+        int delta = n - m;
+        boolean odd = (delta & 1) != 0;
+        int max = (n + m + 1) / 2;
+        int off = max + 1;
+        int[] vf = new int[2 * max + 3];
+        int[] vb = new int[2 * max + 3];
+
+        for (int d = 0; d <= max; ++ d)
+        {
+            // forward search
+            for (int k = -d; k <= d; k += 2) {
+                int x = k == -d || k != d && vf[off + k - 1] < vf[off + k + 1]
+                    ? vf[off + k + 1]
+                    : vf[off + k - 1] + 1;
+                int y = x - k;
+                int x0 = x, y0 = y;
+                while (x < n && y < m && same(a0 + x, b0 + y)) { ++ x; ++ y; }
+                vf[off + k] = x;
+
+                int c = delta - k;
+                if (odd && c >= -(d - 1) && c <= d - 1 && x + vb[off + c] >= n)
+                    return new int[] { a0 + x0, b0 + y0, a0 + x, b0 + y };
+            }
+
+            // backward search
+            for (int k = -d; k <= d; k += 2) {
+                int x = k == -d || k != d && vb[off + k - 1] < vb[off + k + 1]
+                    ? vb[off + k + 1]
+                    : vb[off + k - 1] + 1;
+                int y = x - k;
+                int x0 = x, y0 = y;
+                while (x < n && y < m && same(a1 - 1 - x, b1 - 1 - y)) { ++ x; ++ y; }
+                vb[off + k] = x;
+
+                int c = delta - k;
+                if (!odd && c >= -d && c <= d && x + vf[off + c] >= n)
+                    return new int[] { a1 - x, b1 - y, a1 - x0, b1 - y0 };
+            }
+        }
+
+        throw new AssertionError("no middle snake");
+    }
+
+    // ---------------------------------------------------------------------------------------------
+}
@@ -0,0 +1,240 @@
+package norswap.core.lexer;
+
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
+
+/**
+ * Reactive token streams with backpressure: tokens are only lexed when subscribers request them.
+ * <p>
+ * The nested interfaces mirror those of {@code java.util.concurrent.Flow} (Java 9+), which this
+ * library cannot reference as it targets Java 8. They have the same methods and contracts, so that
+ * adapting them is a matter of forwarding each call to its namesake.
+ * <p>
+ * The publishers are cold: each subscriber gets its own lexing of the whole input. Signals are
+ * emitted synchronously, on the thread calling {@link Subscription#request}, and are serialized
+ * if {@code request} is called concurrently or reentrantly (from {@code onNext}).
+ * <p>
+ * The input must not be modified while it is being lexed.
+ */
+public final class TokenFlow
+{
+    // ---------------------------------------------------------------------------------------------
+
+    /** Mirrors {@code java.util.concurrent.Flow.Publisher}. */
+    public interface Publisher<T>
+    {
+        void subscribe (Subscriber<? super T> subscriber);
+    }
+
+    /** Mirrors {@code java.util.concurrent.Flow.Subscriber}. */
+    public interface Subscriber<T>
+    {
+        void onSubscribe (Subscription subscription);
+        void onNext (T item);
+        void onError (Throwable throwable);
+        void onComplete();
+    }
+
+    /** Mirrors {@code java.util.concurrent.Flow.Subscription}. */
+    public interface Subscription
+    {
+        void request (long n);
+        void cancel();
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    private TokenFlow() {}
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Returns a publisher of the tokens of {@code code} (a nul-terminated string), as returned by
+     * {@link Lexer#lex(String)}. Each requested item is lexed on demand.
+     */
+    public static Publisher<Tokens.Token> tokens (String code)
+    {
+        Lexer.scanner(code); // check termination
+        return subscriber -> subscribe(subscriber, () -> Lexer.scanner(code), 0);
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Same as {@link #tokens(String)}, for the range [{@code start}, {@code end}) of {@code src}
+     * (see {@link Lexer#lex(char[], int, int)}). The array is not copied as a whole.
+     */
+    public static Publisher<Tokens.Token> tokens (char[] src, int start, int end)
+    {
+        new Scanner(src, start, end, 0); // check bounds
+        return subscriber -> subscribe(subscriber, () -> new Scanner(src, start, end, 0), 0);
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Returns a publisher of the tokens of {@code code} (a nul-terminated string) in batches of
+     * {@code batch_size} tokens (except for the last batch, which may be smaller). Each requested
+     * batch is lexed on demand.
+     * <p>
+     * Batches amortize the cost of signalling over many tokens: they suit fast consumers, while
+     * slow consumers can bound memory by requesting few batches at a time.
+     */
+    public static Publisher<Tokens.Token[]> batches (String code, int batch_size)
+    {
+        check_batch_size(batch_size);
+        Lexer.scanner(code); // check termination
+        return subscriber -> subscribe(subscriber, () -> Lexer.scanner(code), batch_size);
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Same as {@link #batches(String, int)}, for the range [{@code start}, {@code end}) of
+     * {@code src} (see {@link Lexer#lex(char[], int, int)}). The array is not copied as a whole.
+     */
+    public static Publisher<Tokens.Token[]> batches (
+            char[] src, int start, int end, int batch_size)
+    {
+        check_batch_size(batch_size);
+        new Scanner(src, start, end, 0); // check bounds
+        return subscriber -> subscribe(
+            subscriber, () -> new Scanner(src, start, end, 0), batch_size);
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    private static void check_batch_size (int batch_size)
+    {
+        if (batch_size <= 0)
+            throw new IllegalArgumentException("Batch size must be positive: " + batch_size);
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    private static <T> void subscribe (
+            Subscriber<? super T> subscriber, Supplier<Scanner> scanner, int batch_size)
+    {
+        if (subscriber == null)
+            throw new NullPointerException("subscriber");
+
+        LexSubscription<T> subscription = new LexSubscription<>(
+            subscriber, scanner.get(), batch_size);
+        subscriber.onSubscribe(subscription);
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * A subscription that lexes an item whenever there is outstanding demand. Emission happens in a
+     * drain loop entered by a single thread at a time: {@link #wip} counts the calls to
+     * {@link #drain()} that have not been accounted for by the thread in the loop.
+     */
+    private static final class LexSubscription<T> implements Subscription
+    {
+        private final Subscriber<? super T> subscriber;
+        private final Scanner scanner;
+
+        /** Number of tokens per item, or 0 if items are single tokens. */
+        private final int batch_size;
+
+        private final AtomicLong demand = new AtomicLong();
+        private final AtomicInteger wip = new AtomicInteger();
+
+        /** Set when no further signal must be emitted. */
+        private volatile boolean cancelled;
+
+        /** Error to signal, caused by an invalid request. */
+        private volatile Throwable error;
+
+        /** Whether the EOF token has been lexed (only accessed in the drain loop). */
+        private boolean done;
+
+        LexSubscription (Subscriber<? super T> subscriber, Scanner scanner, int batch_size)
+        {
+            this.subscriber = subscriber;
+            this.scanner = scanner;
+            this.batch_size = batch_size;
+        }
+
+        @Override public void request (long n)
+        {
+            if (n <= 0)
+                error = new IllegalArgumentException("non-positive request: " + n);
+            else
+                demand.getAndAccumulate(n, (a, b) -> a + b < 0 ? Long.MAX_VALUE : a + b);
+            drain();
+        }
+
+        @Override public void cancel()
+        {
+            cancelled = true;
+        }
+
+        private void drain()
+        {
+            if (wip.getAndIncrement() != 0) return;
+            int missed = 1;
+
+            do {
+                long requested = demand.get();
+                long emitted = 0;
+
+                while (!cancelled) {
+                    if (error != null) {
+                        cancelled = true;
+                        subscriber.onError(error);
+                        return;
+                    }
+                    if (emitted == requested) break;
+
+                    T item;
+                    try {
+                        item = next();
+                    }
+                    catch (RuntimeException e) {
+                        cancelled = true;
+                        subscriber.onError(e);
+                        return;
+                    }
+
+                    subscriber.onNext(item);
+                    ++ emitted;
+
+                    if (done) {
+                        cancelled = true;
+                        subscriber.onComplete();
+                        return;
+                    }
+                }
+
+                if (cancelled) return;
+                if (requested != Long.MAX_VALUE)
+                    demand.addAndGet(-emitted);
+                missed = wip.addAndGet(-missed);
+            }
+            while (missed != 0);
+        }
+
+        @SuppressWarnings("unchecked")
+        private T next()
+        {
+            if (batch_size == 0) {
+                done = scanner.next() == Tokens.Kind.EOF;
+                return (T) Lexer.token(scanner);
+            }
+
+            Tokens.Token[] batch = new Tokens.Token[batch_size];
+            int size = 0;
+            while (size < batch_size && !done) {
+                done = scanner.next() == Tokens.Kind.EOF;
+                batch[size++] = Lexer.token(scanner);
+            }
+            return (T) (size == batch_size ? batch : Arrays.copyOf(batch, size));
+        }
+    }
+
+    // ---------------------------------------------------------------------------------------------
+}
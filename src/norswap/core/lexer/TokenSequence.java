@@ -0,0 +1,98 @@
+package norswap.core.lexer;
+
+import java.util.Spliterator;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+
+/**
+ * Read-only, indexed access to a token stream, regardless of how it is stored.
+ * <p>
+ * Implementations store positions separately from the tokens, so the tokens returned by {@link
+ * #token(int)} may not have their {@link Tokens.Token#pos} and {@link Tokens.Token#len} fields
+ * set: use {@link #pos(int)} and {@link #len(int)} instead.
+ */
+public interface TokenSequence
+{
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Number of tokens (including EOF).
+     */
+    int size();
+
+    /**
+     * Returns the kind of the i-th token.
+     */
+    Tokens.Kind kind (int i);
+
+    /**
+     * Returns the input position at which the i-th token was matched.
+     */
+    int pos (int i);
+
+    /**
+     * Returns the length of the i-th token in the input.
+     */
+    int len (int i);
+
+    /**
+     * Returns the i-th token, whose position may not be set. This token must not be mutated, as
+     * it may be shared.
+     */
+    Tokens.Token token (int i);
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Returns a copy of the i-th token, with its position set.
+     */
+    default Tokens.Token copy (int i)
+    {
+        Tokens.Token token = Tokens.clone(token(i));
+        token.pos = pos(i);
+        token.len = len(i);
+        return token;
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Returns a copy of the token stream, in the same representation as returned by {@link
+     * Lexer#lex}.
+     */
+    default Tokens.Token[] to_array()
+    {
+        Tokens.Token[] out = new Tokens.Token[size()];
+        for (int i = 0; i < out.length; ++ i)
+            out[i] = copy(i);
+        return out;
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Returns a spliterator over the tokens returned by {@link #token(int)}, without copying them.
+     * The spliterator is {@link Spliterator#SIZED SIZED} and {@link Spliterator#SUBSIZED
+     * SUBSIZED}, and splits index ranges in constant time.
+     * <p>
+     * The same caveats as for {@link #token(int)} apply: the tokens must not be mutated, and their
+     * positions may not be set.
+     */
+    default Spliterator<Tokens.Token> spliterator()
+    {
+        return new SequenceSpliterator(this, 0, size(), true);
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Returns a sequential stream backed by {@link #spliterator()} (call {@link Stream#parallel()}
+     * for a parallel one).
+     */
+    default Stream<Tokens.Token> stream()
+    {
+        return StreamSupport.stream(spliterator(), false);
+    }
+
+    // ---------------------------------------------------------------------------------------------
+}
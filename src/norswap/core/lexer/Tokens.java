@@ -1,5 +1,12 @@
 package norswap.core.lexer;
 
+import java.math.BigInteger;
+import java.nio.CharBuffer;
+import java.util.Arrays;
+import java.util.Objects;
+import java.util.Spliterator;
+import java.util.stream.Stream;
+
 import static norswap.core.lexer.Escapes.escape;
 
 /**
@@ -11,6 +18,9 @@ public final class Tokens
 
     /**
      * The ancestor of all token types. Records the input positions corresponding to the token.
+     * <p>
+     * Tokens are mutable, so they keep identity equality: compare them with {@link
+     * Tokens#equals(Token, Token, boolean)} and hash them with {@link Tokens#hash(Token, boolean)}.
      */
     public abstract static class Token
     {
@@ -30,6 +40,22 @@ public final class Tokens
          */
         public int len = 0;
 
+        /**
+         * The kind of the token, which identifies its class.
+         */
+        public abstract Kind kind();
+
+        /**
+         * Whether this token has the same kind and payload as {@code other}, which has the same
+         * kind as this token. Positions are not compared.
+         */
+        abstract boolean same_payload (Token other);
+
+        /**
+         * Hash of the kind and payload of this token, consistent with {@link #same_payload}.
+         */
+        abstract int payload_hash();
+
         /**
          * Textual representation of the token for debugging purposes.
          *
@@ -46,7 +72,30 @@ public final class Tokens
     // =============================================================================================
 
     /**
-     * Makes a copy of the given token.
+     * Enumerates the token types, one per {@link Token} subclass.
+     */
+    public enum Kind
+    {
+        IDENTIFIER,
+        INT_LITERAL,
+        STRING_LITERAL,
+        CHAR_LITERAL,
+        BRACKET,
+        OPERATOR,
+        SPACES,
+        NEWLINE,
+        GARBAGE,
+        COMMENT,
+        EOF;
+
+        /** All values, in ordinal order (avoids the copy made by {@code values()}). */
+        static final Kind[] VALUES = values();
+    }
+
+    // =============================================================================================
+
+    /**
+     * Makes a deep copy of the given token (the lines of a comment are copied to a new array).
      */
     public static <T extends Token> T clone (T token) {
         return Clone.clone(token);
@@ -54,6 +103,26 @@ public final class Tokens
 
     // ---------------------------------------------------------------------------------------------
 
+    /**
+     * Makes a deep copy of the given token stream (as per {@link #clone(Token)}). Large arrays are
+     * copied in parallel.
+     */
+    public static Token[] clone (Token[] tokens) {
+        return Clone.clone(tokens);
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Returns a copy-on-write view of the given token stream, which is not copied upfront: tokens
+     * are only copied when obtained for mutation (see {@link CopyOnWriteTokens}).
+     */
+    public static CopyOnWriteTokens copy_on_write (Token[] tokens) {
+        return new CopyOnWriteTokens(tokens);
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
     /**
      * Returns a textual representation of the token, generated independently from the input
      * the token was generated from.
@@ -83,6 +152,33 @@ public final class Tokens
 
     // ---------------------------------------------------------------------------------------------
 
+    /**
+     * Returns the text of the given token stream, copying the span {@code [pos, pos + len)} of
+     * {@code source} for each token whose position is set (and within {@code source}), and
+     * generating the text of the other tokens as per {@link #unlex(Token)}. Runs of contiguous
+     * tokens are copied in bulk.
+     * <p>
+     * If the tokens were lexed from {@code source}, the result is lossless: comments are
+     * reproduced exactly, including the content of skipped comments. Synthesized tokens have no
+     * position and are generated. Tokens whose payload was modified in place no longer match
+     * their span and are generated as well (this costs a comparison with the span for each
+     * copied token). The EOF token is always generated, as a nul character.
+     */
+    public static String unlex (Tokens.Token[] tokens, CharSequence source) {
+        return Unlexer.unlex(tokens, source);
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Same as {@link #unlex(Token[], CharSequence)}, for tokens lexed from a char array.
+     */
+    public static String unlex (Tokens.Token[] tokens, char[] source) {
+        return Unlexer.unlex(tokens, CharBuffer.wrap(source));
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
     /**
      * Returns a textual representation of the given token stream (as per {@link #unlex(Token)}, and
      * sets the tokens' positions to match the generated text.
@@ -91,6 +187,162 @@ public final class Tokens
         return Unlexer.synchronize(tokens);
     }
 
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Whether the two tokens have the same kind and payload, and if {@code with_positions} is set,
+     * the same position and length. Either token may be null.
+     * <p>
+     * Ignoring positions is useful to detect that a token stream is unchanged after an edit that
+     * shifted it.
+     */
+    public static boolean equals (Token a, Token b, boolean with_positions) {
+        if (a == b) return true;
+        if (a == null || b == null || a.kind() != b.kind()) return false;
+        if (with_positions && (a.pos != b.pos || a.len != b.len)) return false;
+        return a.same_payload(b);
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Returns a hash of the kind and payload of the token, including its position and length if
+     * {@code with_positions} is set. Consistent with {@link #equals(Token, Token, boolean)}.
+     */
+    public static int hash (Token token, boolean with_positions) {
+        int h = token.payload_hash();
+        return with_positions ? (h * 31 + token.pos) * 31 + token.len : h;
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Whether the two token streams have the same length and pairwise equal tokens, as per
+     * {@link #equals(Token, Token, boolean)}.
+     */
+    public static boolean equals (Token[] a, Token[] b, boolean with_positions) {
+        if (a == b) return true;
+        if (a == null || b == null || a.length != b.length) return false;
+        for (int i = 0; i < a.length; ++ i)
+            if (!equals(a[i], b[i], with_positions))
+                return false;
+        return true;
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Returns a hash of the token stream, consistent with
+     * {@link #equals(Token[], Token[], boolean)}.
+     */
+    public static int hash (Token[] tokens, boolean with_positions) {
+        int h = 1;
+        for (Token token: tokens)
+            h = h * 31 + hash(token, with_positions);
+        return h;
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Same as {@link #equals(Token[], Token[], boolean)} for token sequences, regardless of their
+     * representation. Kinds and positions are compared before materializing any payload, and
+     * compact sequences compare their positions in bulk.
+     */
+    public static boolean equals (TokenSequence a, TokenSequence b, boolean with_positions) {
+        if (a == b) return true;
+        int size = a.size();
+        if (size != b.size()) return false;
+
+        if (with_positions && a instanceof CompactTokens && b instanceof CompactTokens) {
+            if (!((CompactTokens) a).same_positions((CompactTokens) b)) return false;
+        } else {
+            for (int i = 0; i < size; ++ i) {
+                if (a.kind(i) != b.kind(i) || a.len(i) != b.len(i)) return false;
+                if (with_positions && a.pos(i) != b.pos(i)) return false;
+            }
+        }
+
+        for (int i = 0; i < size; ++ i)
+            if (!same_payload(a, i, b, i))
+                return false;
+        return true;
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Same as {@link #hash(Token[], boolean)} for token sequences, regardless of their
+     * representation: equal to the hash of {@link TokenSequence#to_array()}.
+     */
+    public static int hash (TokenSequence tokens, boolean with_positions) {
+        int h = 1;
+        for (int i = 0, size = tokens.size(); i < size; ++ i) {
+            int t = payload_hash(tokens, i);
+            if (with_positions) t = (t * 31 + tokens.pos(i)) * 31 + tokens.len(i);
+            h = h * 31 + t;
+        }
+        return h;
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Whether the i-th token of {@code a} and the j-th token of {@code b}, which have the same
+     * kind, have the same payload. Lex results are compared through their stored payloads, other
+     * sequences through their tokens.
+     */
+    static boolean same_payload (TokenSequence a, int i, TokenSequence b, int j) {
+        if (a instanceof LexResult && b instanceof LexResult)
+            return ((LexResult) a).same_payload(i, (LexResult) b, j);
+        return payload(a, i).same_payload(payload(b, j));
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Returns the payload hash of the i-th token of the sequence (see {@link #hash(Token,
+     * boolean)}), without materializing it if the sequence is a lex result.
+     */
+    static int payload_hash (TokenSequence tokens, int i) {
+        return tokens instanceof LexResult
+            ? ((LexResult) tokens).payload_hash(i)
+            : payload(tokens, i).payload_hash();
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Returns the i-th token of the sequence, to read its payload, without copying the flyweights
+     * of compact sequences.
+     */
+    private static Token payload (TokenSequence tokens, int i) {
+        return tokens instanceof CompactTokens
+            ? ((CompactTokens) tokens).payload(i)
+            : tokens.token(i);
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Returns a spliterator over the given token stream, without copying it. The spliterator is
+     * {@link Spliterator#SIZED SIZED} and {@link Spliterator#SUBSIZED SUBSIZED}, and splits in
+     * constant time, so that parallel streams scale with the number of cores.
+     */
+    public static Spliterator<Token> spliterator (Tokens.Token[] tokens) {
+        return Arrays.spliterator(tokens);
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Returns a sequential stream over the given token stream (call {@link Stream#parallel()} for
+     * a parallel one), backed by {@link #spliterator(Token[])}.
+     */
+    public static Stream<Token> stream (Tokens.Token[] tokens) {
+        return Arrays.stream(tokens);
+    }
+
     // =============================================================================================
 
     /**
@@ -100,17 +352,82 @@ public final class Tokens
     {
         public String str;
         public Identifier (String str) { this.str = str; }
+        public Kind kind() { return Kind.IDENTIFIER; }
+        boolean same_payload (Token o) { return Objects.equals(str, ((Identifier) o).str); }
+        int payload_hash() { return 31 * Kind.IDENTIFIER.ordinal() + Objects.hashCode(str); }
     }
 
     // ---------------------------------------------------------------------------------------------
 
     /**
-     * A token representing an integer litteral.
+     * A token representing an integer litteral, of any length. Its value is decoded from its
+     * digits on demand, as an int, a long or a big integer.
+     * <p>
+     * In dialects that allow it (see {@link LexerSpec#int_suffixes}), the digits may be followed
+     * by a suffix, which is part of {@link #str} but not of the value.
      */
     public static final class IntLiteral extends Token
     {
-        public int value;
-        public IntLiteral (int value) { this.value = value; }
+        /** The text of the literal: its digits, followed by its suffix if any. */
+        public String str;
+        public IntLiteral (String str) { this.str = str; }
+        public IntLiteral (int value) { this.str = Integer.toString(value); }
+        public Kind kind() { return Kind.INT_LITERAL; }
+        boolean same_payload (Token o) { return Objects.equals(str, ((IntLiteral) o).str); }
+        int payload_hash() { return 31 * Kind.INT_LITERAL.ordinal() + Objects.hashCode(str); }
+
+        /**
+         * Returns the value of the literal.
+         * @throws ArithmeticException if the value does not fit in an int
+         */
+        public int int_value() {
+            return Math.toIntExact(parse(str));
+        }
+
+        /**
+         * Returns the value of the literal.
+         * @throws ArithmeticException if the value does not fit in a long
+         */
+        public long long_value() {
+            return parse(str);
+        }
+
+        /** Returns the value of the literal. */
+        public BigInteger big_value() {
+            return big(str);
+        }
+
+        /** Returns the suffix of the literal, or the empty string if it has none. */
+        public String suffix() {
+            return str.substring(digits(str));
+        }
+
+        /** Returns the number of leading digits in {@code str}. */
+        static int digits (String str)
+        {
+            int i = 0;
+            while (i < str.length() && Predicates.is_digit(str.charAt(i))) ++ i;
+            return i;
+        }
+
+        /**
+         * Decodes the leading decimal digits of {@code str}.
+         * @throws ArithmeticException if the value does not fit in a long
+         */
+        static long parse (String str)
+        {
+            long value = 0;
+            for (int i = 0, n = digits(str); i < n; ++ i)
+                value = Math.addExact(Math.multiplyExact(value, 10), str.charAt(i) - '0');
+            return value;
+        }
+
+        /** Decodes the leading decimal digits of {@code str}. */
+        static BigInteger big (String str)
+        {
+            int n = digits(str);
+            return new BigInteger(n == str.length() ? str : str.substring(0, n));
+        }
     }
 
     // ---------------------------------------------------------------------------------------------
@@ -122,6 +439,9 @@ public final class Tokens
     {
         public String str;
         public StringLiteral (String str) { this.str = str; }
+        public Kind kind() { return Kind.STRING_LITERAL; }
+        boolean same_payload (Token o) { return Objects.equals(str, ((StringLiteral) o).str); }
+        int payload_hash() { return 31 * Kind.STRING_LITERAL.ordinal() + Objects.hashCode(str); }
     }
 
     // ---------------------------------------------------------------------------------------------
@@ -133,6 +453,9 @@ public final class Tokens
     {
         public String str;
         public CharLiteral (String str) { this.str = str; }
+        public Kind kind() { return Kind.CHAR_LITERAL; }
+        boolean same_payload (Token o) { return Objects.equals(str, ((CharLiteral) o).str); }
+        int payload_hash() { return 31 * Kind.CHAR_LITERAL.ordinal() + Objects.hashCode(str); }
     }
 
     // ---------------------------------------------------------------------------------------------
@@ -144,6 +467,9 @@ public final class Tokens
     {
         public char c;
         public Bracket (char c) { this.c = c; }
+        public Kind kind() { return Kind.BRACKET; }
+        boolean same_payload (Token o) { return c == ((Bracket) o).c; }
+        int payload_hash() { return 31 * Kind.BRACKET.ordinal() + c; }
     }
 
     // ---------------------------------------------------------------------------------------------
@@ -155,6 +481,9 @@ public final class Tokens
     {
         public String str;
         public Operator (String str) { this.str = str; }
+        public Kind kind() { return Kind.OPERATOR; }
+        boolean same_payload (Token o) { return Objects.equals(str, ((Operator) o).str); }
+        int payload_hash() { return 31 * Kind.OPERATOR.ordinal() + Objects.hashCode(str); }
     }
 
     // ---------------------------------------------------------------------------------------------
@@ -166,6 +495,9 @@ public final class Tokens
     {
         public int count;
         public Spaces (int count) { this.count = count; }
+        public Kind kind() { return Kind.SPACES; }
+        boolean same_payload (Token o) { return count == ((Spaces) o).count; }
+        int payload_hash() { return 31 * Kind.SPACES.ordinal() + count; }
     }
 
     // ---------------------------------------------------------------------------------------------
@@ -173,7 +505,12 @@ public final class Tokens
     /**
      * A token representing a single newline.
      */
-    public static final class Newline extends Token {}
+    public static final class Newline extends Token
+    {
+        public Kind kind() { return Kind.NEWLINE; }
+        boolean same_payload (Token o) { return true; }
+        int payload_hash() { return Kind.NEWLINE.ordinal(); }
+    }
 
     // ---------------------------------------------------------------------------------------------
 
@@ -184,28 +521,187 @@ public final class Tokens
     {
         public String str;
         public Garbage (String str) { this.str = str; }
+        public Kind kind() { return Kind.GARBAGE; }
+        boolean same_payload (Token o) { return Objects.equals(str, ((Garbage) o).str); }
+        int payload_hash() { return 31 * Kind.GARBAGE.ordinal() + Objects.hashCode(str); }
     }
 
     // ---------------------------------------------------------------------------------------------
 
     /**
      * A token representing an end-of-line comment, or a contiugous block of commented lines.
+     * <p>
+     * Comments produced by the lexer only record their span in the input: their lines are split
+     * on first access to {@link #lines()}. Comments produced by {@link Lexer#lex_skip_comments}
+     * have no content at all.
      */
     public static final class Comment extends Token
     {
         /** Whether this is a block comment. Block comments start on their own line. */
         public boolean block;
 
-        /** All lines (one or more) in the comment. */
-        public String[] lines;
-
         /** Number of leading whitespace before each line. 0 if `lines.size == 1`. */
         public int align;
 
+        /** All lines (one or more) in the comment, or null if not split yet or skipped. */
+        private String[] lines;
+
+        private int line_count;
+
+        /** Input the comment is split from on demand, or null. */
+        private CharSequence src;
+
+        /** Span of the comment in {@link #src}. */
+        private int start, end;
+
         public Comment (boolean block, int align, String[] lines) {
             this.block = block;
             this.align = align;
             this.lines = lines;
+            this.line_count = lines == null ? 0 : lines.length;
+        }
+
+        /**
+         * Creates a comment with {@code line_count} lines, whose text is {@code src[start:end]}.
+         * If {@code src} is null, the comment has no content.
+         */
+        Comment (boolean block, int align, int line_count, CharSequence src, int start, int end) {
+            this.block = block;
+            this.align = align;
+            this.line_count = line_count;
+            this.src = src;
+            this.start = start;
+            this.end = end;
+        }
+
+        /**
+         * Returns the lines of the comment (without delimiter and leading space), splitting them
+         * from the input on the first call. The array is owned by the token. Returns null if the
+         * comment content was skipped.
+         */
+        public String[] lines() {
+            if (lines == null && src != null) {
+                lines = split(src, start, end, align, line_count);
+                src = null;
+            }
+            return lines;
+        }
+
+        /** Returns the number of lines in the comment, without splitting them. */
+        public int line_count() {
+            return lines == null ? line_count : lines.length;
+        }
+
+        /** Whether the comment content was skipped, in which case {@link #lines()} is null. */
+        public boolean skipped() {
+            return lines == null && src == null;
+        }
+
+        /**
+         * Splits {@code src[start:end]}, the text of a comment of {@code count} lines whose
+         * delimiters are preceded by {@code align} spaces, into lines.
+         */
+        static String[] split (CharSequence src, int start, int end, int align, int count)
+        {
+            String[] lines = new String[count];
+            int pos = start;
+
+            for (int i = 0; i < count; ++ i) {
+                int line_start = content_start(src, pos, end, align);
+                pos = content_end(src, line_start, end);
+                lines[i] = src.subSequence(line_start, pos).toString();
+                ++ pos; // newline
+            }
+
+            return lines;
+        }
+
+        /**
+         * Returns the index at which the content of the comment line starting at {@code pos}
+         * starts, after the spaces, the delimiter and the space following it (if any).
+         */
+        private static int content_start (CharSequence src, int pos, int end, int align)
+        {
+            pos += align + 2; // spaces & delimiter
+            if (pos < end && src.charAt(pos) == ' ') ++ pos;
+            return pos;
+        }
+
+        /**
+         * Returns the index of the newline ending the comment line content starting at
+         * {@code pos}, or {@code end}.
+         */
+        private static int content_end (CharSequence src, int pos, int end)
+        {
+            while (pos < end && src.charAt(pos) != '\n') ++ pos;
+            return pos;
+        }
+
+        /** Copies the state of this comment, sharing the input but not the lines. */
+        Comment copy() {
+            Comment copy = new Comment(block, align, line_count, src, start, end);
+            copy.lines = lines == null ? null : lines.clone();
+            return copy;
+        }
+
+        public Kind kind() { return Kind.COMMENT; }
+
+        @Override public String toString() {
+            if (!skipped()) return super.toString();
+            return "Comment (" + line_count + " skipped lines)"
+                + (pos >= 0 ? " [" + pos + "-" + (pos + len) + "]" : "");
+        }
+
+        /**
+         * Compares the lines of the comments without splitting them: the lines of a comment that
+         * is not split yet are read from its input.
+         */
+        boolean same_payload (Token o) {
+            Comment that = (Comment) o;
+            if (block != that.block || align != that.align
+                    || line_count() != that.line_count() || skipped() != that.skipped())
+                return false;
+            if (lines != null && that.lines != null || skipped())
+                return Arrays.equals(lines, that.lines);
+
+            int p = start, q = that.start;
+            for (int i = 0; i < line_count(); ++ i) {
+                CharSequence a = lines != null ? lines[i] : src;
+                CharSequence b = that.lines != null ? that.lines[i] : that.src;
+                int a_start = lines != null ? 0 : content_start(src, p, end, align);
+                int b_start = that.lines != null ? 0 : content_start(that.src, q, that.end, align);
+                int a_end = lines != null
+                    ? a.length() : content_end(src, a_start, end);
+                int b_end = that.lines != null
+                    ? b.length() : content_end(that.src, b_start, that.end);
+                p = a_end + 1;
+                q = b_end + 1;
+
+                if (a_end - a_start != b_end - b_start) return false;
+                for (int k = 0; k < a_end - a_start; ++ k)
+                    if (a.charAt(a_start + k) != b.charAt(b_start + k)) return false;
+            }
+            return true;
+        }
+
+        /**
+         * Equal to the hash of the kind, flags and {@link #lines()}, but computed from the input
+         * if the comment is not split yet.
+         */
+        int payload_hash() {
+            int h = ((31 * Kind.COMMENT.ordinal() + (block ? 1 : 0)) * 31 + align) * 31;
+            if (lines != null || src == null) return h + Arrays.hashCode(lines);
+
+            int lines_hash = 1;
+            for (int i = 0, pos = start; i < line_count; ++ i) {
+                int line_start = content_start(src, pos, end, align);
+                pos = content_end(src, line_start, end);
+                int line_hash = 0; // as String#hashCode
+                for (int k = line_start; k < pos; ++ k) line_hash = 31 * line_hash + src.charAt(k);
+                lines_hash = 31 * lines_hash + line_hash;
+                ++ pos; // newline
+            }
+            return h + lines_hash;
         }
     }
 
@@ -214,7 +710,12 @@ public final class Tokens
     /**
      * The end of file token.
      */
-    public static final class EOF extends Token {}
+    public static final class EOF extends Token
+    {
+        public Kind kind() { return Kind.EOF; }
+        boolean same_payload (Token o) { return true; }
+        int payload_hash() { return Kind.EOF.ordinal(); }
+    }
 
     // ---------------------------------------------------------------------------------------------
 }
@@ -1,5 +1,7 @@
 package norswap.core.lexer;
 
+import java.util.Arrays;
+
 import static norswap.utils.Strings.append;
 import static norswap.utils.Strings.repeat;
 import static norswap.utils.Util.cast;
@@ -19,7 +21,7 @@ final class Unlexer
         }
         else if (token instanceof Tokens.IntLiteral) {
             Tokens.IntLiteral tok = cast(token);
-            return "" + tok.value;
+            return tok.str;
         }
         else if (token instanceof Tokens.StringLiteral) {
             Tokens.StringLiteral tok = cast(token);
@@ -51,9 +53,11 @@ final class Unlexer
         }
         else if (token instanceof Tokens.Comment) {
             Tokens.Comment tok = cast(token);
+            if (tok.skipped())
+                throw new IllegalArgumentException("Cannot unlex a skipped comment.");
             String spacing = repeat(' ', tok.align);
             StringBuilder b = new StringBuilder();
-            for (String line: tok.lines)
+            for (String line: tok.lines())
                 append(b, spacing, "// ", line, "\n");
             return b.toString();
         }
@@ -78,10 +82,135 @@ final class Unlexer
 
     // ---------------------------------------------------------------------------------------------
 
+    /**
+     * Implementation of {@link Tokens#unlex(Tokens.Token[], CharSequence)}.
+     */
+    static String unlex (Tokens.Token[] tokens, CharSequence source)
+    {
+        Output out = new Output(source.length() + 16);
+        int length = source.length();
+
+        // span of the source pending copy, which grows while tokens are contiguous
+        int start = 0;
+        int end = 0;
+
+        for (Tokens.Token token: tokens)
+        {
+            boolean copied = token.pos >= 0 && token.len > 0 && token.pos <= length - token.len
+                && !(token instanceof Tokens.EOF) && matches(token, source);
+
+            if (copied && token.pos == end && start < end) {
+                end += token.len;
+                continue;
+            }
+
+            out.append(source, start, end);
+            start = end = 0;
+
+            if (copied) {
+                start = token.pos;
+                end = token.pos + token.len;
+            }
+            else {
+                String unlexed = unlex(token);
+                out.append(unlexed, 0, unlexed.length());
+            }
+        }
+
+        out.append(source, start, end);
+        return new String(out.buf, 0, out.size);
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Whether the payload of the token matches its span {@code [pos, pos + len)} of {@code
+     * source}, which must be within {@code source}. This is not the case for a token whose
+     * payload was modified in place, but whose position was kept.
+     */
+    private static boolean matches (Tokens.Token token, CharSequence source)
+    {
+        int pos = token.pos;
+        int len = token.len;
+
+        /**/ if (token instanceof Tokens.Identifier) {
+            Tokens.Identifier tok = cast(token);
+            return region_matches(source, pos, len, tok.str);
+        }
+        else if (token instanceof Tokens.IntLiteral) {
+            Tokens.IntLiteral tok = cast(token);
+            return region_matches(source, pos, len, tok.str);
+        }
+        else if (token instanceof Tokens.StringLiteral) {
+            Tokens.StringLiteral tok = cast(token);
+            return region_matches(source, pos + 1, len - 2, tok.str);
+        }
+        else if (token instanceof Tokens.CharLiteral) {
+            Tokens.CharLiteral tok = cast(token);
+            return region_matches(source, pos + 1, len - 2, tok.str);
+        }
+        else if (token instanceof Tokens.Bracket) {
+            Tokens.Bracket tok = cast(token);
+            return len == 1 && source.charAt(pos) == tok.c;
+        }
+        else if (token instanceof Tokens.Operator) {
+            Tokens.Operator tok = cast(token);
+            return region_matches(source, pos, len, tok.str);
+        }
+        else if (token instanceof Tokens.Spaces) {
+            Tokens.Spaces tok = cast(token);
+            return len == tok.count;
+        }
+        else if (token instanceof Tokens.Garbage) {
+            Tokens.Garbage tok = cast(token);
+            return region_matches(source, pos, len, tok.str);
+        }
+        else if (token instanceof Tokens.Comment) {
+            Tokens.Comment tok = cast(token);
+            // the delimiter of the first line must be preceded by exactly `align` spaces
+            if (tok.align + 2 > len || source.charAt(pos + tok.align) != '/') return false;
+            for (int i = pos; i < pos + tok.align; ++ i)
+                if (source.charAt(i) != ' ') return false;
+            return tok.skipped() || tok.same_payload(new Tokens.Comment(
+                tok.block, tok.align, tok.line_count(), source, pos, pos + len));
+        }
+        return true;
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Whether {@code source[pos:pos+len]} is equal to {@code str}.
+     */
+    private static boolean region_matches (CharSequence source, int pos, int len, String str)
+    {
+        if (len != str.length()) return false;
+        if (source instanceof String)
+            return ((String) source).regionMatches(pos, str, 0, len);
+        for (int i = 0; i < len; ++ i)
+            if (source.charAt(pos + i) != str.charAt(i)) return false;
+        return true;
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
     /**
      * Implementation of {@link Tokens#synchronize(Tokens.Token[])}.
      */
     static String synchronize (Tokens.Token[] tokens)
+    {
+        if (!Metrics.enabled())
+            return synchronize_tokens(tokens);
+
+        Metrics.Probe probe = Metrics.begin(Metrics.Operation.SYNCHRONIZE);
+        String out = synchronize_tokens(tokens);
+        Metrics.end(probe, out.length(), tokens);
+        return out;
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    private static String synchronize_tokens (Tokens.Token[] tokens)
     {
         int pos = 0;
         StringBuilder b = new StringBuilder();
@@ -98,4 +227,28 @@ final class Unlexer
     }
 
     // ---------------------------------------------------------------------------------------------
+
+    /**
+     * A growable char array, filled by bulk copies.
+     */
+    private static final class Output
+    {
+        char[] buf;
+        int size;
+
+        Output (int capacity) { buf = new char[capacity]; }
+
+        void append (CharSequence src, int start, int end)
+        {
+            int n = end - start;
+            if (n == 0) return;
+            if (size + n > buf.length)
+                buf = Arrays.copyOf(buf, Math.max(buf.length * 2, size + n));
+
+            Lexer.get_chars(src, start, end, buf, size);
+            size += n;
+        }
+    }
+
+    // ---------------------------------------------------------------------------------------------
 }
@@ -0,0 +1,211 @@
+package norswap.core.lexer;
+
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.function.Supplier;
+
+/**
+ * Lexes ranges of lines of an input (e.g. the lines visible in an editor), for syntax
+ * highlighting: only the token kinds and their offsets in each line are reported.
+ * <p>
+ * The lexer state at the start of each line is recorded the first time the line is reached, so
+ * that later requests only lex the requested lines (plus the part of a multi-line token that
+ * starts before the first requested line). The states are only valid for this version of the
+ * input: after an edit, create a new instance.
+ * <p>
+ * Tokens that span multiple lines (block comments, literals containing newlines) are split into
+ * one span per line. Lines are delimited by newline characters: a line includes its terminating
+ * newline (if any), and the last line includes the EOF token.
+ * <p>
+ * Instances are not thread-safe.
+ */
+public final class ViewportLexer
+{
+    // ---------------------------------------------------------------------------------------------
+
+    /** Creates a scanner at the start of the input. */
+    private final Supplier<Scanner> scanners;
+
+    /** Scanner positioned after the last token whose line breaks have been recorded. */
+    private final Scanner frontier;
+
+    /** Whether the frontier scanner has reached the EOF token. */
+    private boolean done;
+
+    /** Number of lines whose start has been recorded. */
+    private int lines;
+
+    /** Position of the start of each line. */
+    private int[] line_pos = new int[256];
+
+    /** Position of the start of the token that contains the start of each line. */
+    private int[] token_pos = new int[256];
+
+    /** Scanner {@link Scanner#line_start} flag before the token at {@link #token_pos}. */
+    private final BitSet line_start = new BitSet();
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Creates a viewport lexer for {@code code}, which must be nul-terminated
+     * (see {@link Lexer#lex(String)}).
+     */
+    public ViewportLexer (String code)
+    {
+        this(() -> Lexer.scanner(code));
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Creates a viewport lexer for the range [{@code start}, {@code end}) of {@code src}
+     * (see {@link Lexer#lex(char[], int, int)}). The array must not be modified while in use.
+     */
+    public ViewportLexer (char[] src, int start, int end)
+    {
+        this(() -> new Scanner(src, start, end, 0));
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    private ViewportLexer (Supplier<Scanner> scanners)
+    {
+        this.scanners = scanners;
+        this.frontier = scanners.get();
+        int pos = frontier.pos + frontier.offset;
+        record(pos, pos, true);
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    private void record (int line, int token, boolean flag)
+    {
+        if (lines == line_pos.length) {
+            line_pos = Arrays.copyOf(line_pos, lines * 2);
+            token_pos = Arrays.copyOf(token_pos, lines * 2);
+        }
+        line_pos[lines] = line;
+        token_pos[lines] = token;
+        line_start.set(lines, flag);
+        ++ lines;
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Lexes until the start of line {@code line} has been recorded, or the end of the input.
+     */
+    private void extend (int line)
+    {
+        Scanner scanner = frontier;
+
+        while (lines <= line && !done)
+        {
+            boolean flag = scanner.line_start;
+            Tokens.Kind kind = scanner.next();
+            int start = scanner.start + scanner.offset;
+            int end = scanner.end + scanner.offset;
+
+            switch (kind) {
+                case EOF:
+                    done = true;
+                    break;
+                case NEWLINE:
+                    record(end, end, true);
+                    break;
+                case COMMENT:
+                case STRING_LITERAL:
+                case CHAR_LITERAL:
+                    for (int i = scanner.start; i < scanner.end; ++ i) {
+                        if (scanner.buf[i] != '\n') continue;
+                        if (i + 1 == scanner.end)
+                            record(end, end, scanner.line_start);
+                        else
+                            record(i + 1 + scanner.offset, start, flag);
+                    }
+                    break;
+                default:
+            }
+        }
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Returns the number of lines in the input. This requires lexing the whole input (once).
+     */
+    public int line_count()
+    {
+        extend(Integer.MAX_VALUE);
+        return lines;
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Returns the spans of the tokens on each line in [{@code first}, {@code last}) (clipped to
+     * the number of lines). The i-th array describes line {@code first + i} as a sequence of
+     * (kind, offset) pairs: {@code [kind_0, offset_0, kind_1, offset_1, ...]}, where the kind is
+     * a {@link Tokens.Kind#ordinal()} and the offset is relative to the start of the line. Each
+     * span extends up to the offset of the next one, or to the end of the line.
+     *
+     * @throws IndexOutOfBoundsException if {@code first} is negative or past the last line, or if
+     * {@code last < first}
+     */
+    public int[][] lex_lines (int first, int last)
+    {
+        if (first < 0 || last < first)
+            throw new IndexOutOfBoundsException("line range [" + first + ", " + last + ")");
+
+        extend(last);
+
+        if (first >= lines)
+            throw new IndexOutOfBoundsException(
+                "line " + first + " of input with " + lines + " lines");
+
+        last = Math.min(last, lines);
+        if (first == last) return new int[0][];
+
+        int end = last < lines ? line_pos[last] : Integer.MAX_VALUE;
+
+        Scanner scanner = scanners.get();
+        scanner.restore(new LexerState(token_pos[first], 0, 0, line_start.get(first)));
+
+        int[][] result = new int[last - first][];
+        int[] spans = new int[32];
+        int size = 0;
+        int line = first;
+
+        while (true)
+        {
+            Tokens.Kind kind = scanner.next();
+            int start = scanner.start + scanner.offset;
+            if (start >= end) break;
+
+            while (line + 1 < last && start >= line_pos[line + 1]) {
+                result[line - first] = Arrays.copyOf(spans, size);
+                size = 0;
+                ++ line;
+            }
+
+            if (size + 2 > spans.length) spans = Arrays.copyOf(spans, spans.length * 2);
+            spans[size++] = kind.ordinal();
+            spans[size++] = Math.max(start, line_pos[line]) - line_pos[line];
+
+            while (line + 1 < last && scanner.end + scanner.offset > line_pos[line + 1]) {
+                result[line - first] = Arrays.copyOf(spans, size);
+                spans[0] = kind.ordinal();
+                spans[1] = 0;
+                size = 2;
+                ++ line;
+            }
+
+            if (kind == Tokens.Kind.EOF) break;
+        }
+
+        result[line - first] = Arrays.copyOf(spans, size);
+        return result;
+    }
+
+    // ---------------------------------------------------------------------------------------------
+}
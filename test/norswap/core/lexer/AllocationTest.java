@@ -0,0 +1,176 @@
+package norswap.core.lexer;
+
+import norswap.core.lexer.Tokens.Token;
+import java.lang.management.ManagementFactory;
+
+/**
+ * Allocation budgets for the hot paths of the library: each test measures the bytes allocated
+ * (by the current thread) per input char or per token, and fails if it exceeds its budget.
+ * <p>
+ * The budgets are about 25% above the values measured on a 64-bit HotSpot JVM with compressed
+ * pointers (the default for heaps under 32GB): tight enough that a single extra object per token
+ * (at least 16 bytes) exceeds them. When an intentional change moves a measurement, update its
+ * budget along with it.
+ * <p>
+ * This class follows the conventions of the Maven Surefire POJO provider (public {@code test*}
+ * methods, failures reported by throwing), so that it runs in the test phase without a test
+ * framework. Measurements are skipped on JVMs that do not support allocation accounting
+ * ({@code com.sun.management.ThreadMXBean}) or that do not use compressed pointers.
+ */
+public final class AllocationTest
+{
+    // ---------------------------------------------------------------------------------------------
+    // Budgets.
+
+    /**
+     * {@link Lexer#lex(String)}: the token objects, their payload strings and the token array. The
+     * input is not copied as a whole, only through a small window.
+     */
+    static final double LEX_BYTES_PER_TOKEN = 75;
+
+    /** {@link Tokens#unlex(Token[])}: builder and output string. */
+    static final double UNLEX_BYTES_PER_CHAR = 17;
+
+    /** {@link Tokens#synchronize(Token[])}: builder and output string. */
+    static final double SYNCHRONIZE_BYTES_PER_CHAR = 17;
+
+    /** {@link Escapes#escape(String)}: builder and output string. */
+    static final double ESCAPE_BYTES_PER_CHAR = 4.5;
+
+    /** {@link Tokens#clone(Token)}: the copy (sharing the payload). */
+    static final double CLONE_BYTES_PER_TOKEN = 30;
+
+    // ---------------------------------------------------------------------------------------------
+
+    private static final int WARMUP = 20;
+    private static final int RUNS = 10;
+
+    // ---------------------------------------------------------------------------------------------
+
+    /** Representative input (see {@link Corpus.Profile#TYPICAL}). */
+    private final String input = Corpus.generate(Corpus.Profile.TYPICAL, 42, 1 << 18);
+    private final Token[] tokens = Lexer.lex(input);
+
+    private static final com.sun.management.ThreadMXBean THREADS = thread_bean();
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Returns the bean used to measure allocations, or null (after printing why) if the JVM does
+     * not support the measurements against which the budgets were calibrated.
+     */
+    private static com.sun.management.ThreadMXBean thread_bean()
+    {
+        try {
+            com.sun.management.HotSpotDiagnosticMXBean diagnostic = ManagementFactory
+                .getPlatformMXBean(com.sun.management.HotSpotDiagnosticMXBean.class);
+            if (!"true".equals(diagnostic.getVMOption("UseCompressedOops").getValue())) {
+                System.out.println("compressed pointers disabled, allocation budgets skipped");
+                return null;
+            }
+
+            com.sun.management.ThreadMXBean bean =
+                (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+            if (!bean.isThreadAllocatedMemorySupported()) throw new UnsupportedOperationException();
+            bean.setThreadAllocatedMemoryEnabled(true);
+            return bean;
+        }
+        catch (RuntimeException | NoClassDefFoundError e) {
+            System.out.println("allocation accounting not supported, allocation budgets skipped");
+            return null;
+        }
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Returns the average number of bytes allocated by a run of {@code action}, after warming it
+     * up, or -1 if allocation accounting is not supported.
+     */
+    private static double allocated (Runnable action)
+    {
+        if (THREADS == null) return -1;
+        for (int i = 0; i < WARMUP; ++ i) action.run();
+
+        long id = Thread.currentThread().getId();
+        long before = THREADS.getThreadAllocatedBytes(id);
+        for (int i = 0; i < RUNS; ++ i) action.run();
+        long after = THREADS.getThreadAllocatedBytes(id);
+        return (after - before) / (double) RUNS;
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Checks that {@code bytes / units} is within {@code budget}.
+     *
+     * @throws AssertionError if the budget is exceeded
+     */
+    private static void check (String name, double bytes, int units, String unit, double budget)
+    {
+        if (bytes < 0) return; // skipped
+
+        double ratio = bytes / units;
+        System.out.printf("%s: %.1f bytes/%s (budget %.1f)%n", name, ratio, unit, budget);
+        if (ratio > budget)
+            throw new AssertionError(String.format(
+                "%s allocates %.1f bytes/%s, over its budget of %.1f", name, ratio, unit, budget));
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    public void test_lex()
+    {
+        check("lex", allocated(() -> Lexer.lex(input)),
+            tokens.length, "token", LEX_BYTES_PER_TOKEN);
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    public void test_unlex()
+    {
+        check("unlex", allocated(() -> Tokens.unlex(tokens)),
+            input.length(), "char", UNLEX_BYTES_PER_CHAR);
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    public void test_synchronize()
+    {
+        check("synchronize", allocated(() -> Tokens.synchronize(tokens)),
+            input.length(), "char", SYNCHRONIZE_BYTES_PER_CHAR);
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    public void test_escape()
+    {
+        check("escape", allocated(() -> Escapes.escape(input)),
+            input.length(), "char", ESCAPE_BYTES_PER_CHAR);
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    public void test_clone()
+    {
+        check("clone", allocated(() -> { for (Token token: tokens) Tokens.clone(token); }),
+            tokens.length, "token", CLONE_BYTES_PER_TOKEN);
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Runs all the tests outside of Maven.
+     */
+    public static void main (String[] args)
+    {
+        AllocationTest test = new AllocationTest();
+        test.test_lex();
+        test.test_unlex();
+        test.test_synchronize();
+        test.test_escape();
+        test.test_clone();
+    }
+
+    // ---------------------------------------------------------------------------------------------
+}
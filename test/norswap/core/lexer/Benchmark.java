@@ -20,6 +20,45 @@ public final class Benchmark
 
     // ---------------------------------------------------------------------------------------------
 
+    /**
+     * Reports the lexing throughput for a 64M chars corpus of each {@link Corpus.Profile}.
+     */
+    private static void bench_profiles()
+    {
+        for (Corpus.Profile profile: Corpus.Profile.values()) {
+            String corpus = Corpus.generate(profile, 42, 64 << 20);
+            Lexer.lex(corpus); // warmup
+            long start = System.nanoTime();
+            int tokens = Lexer.lex(corpus).length;
+            double secs = (System.nanoTime() - start) / 1e9;
+            System.out.printf("%s: %d tokens, %.0f MB/s%n",
+                profile, tokens, corpus.length() / secs / 1e6);
+        }
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Compares the throughput of {@link Lexer} and of the lexer generated from the default spec
+     * (see {@link LexerGenerator}), on a 64M chars corpus.
+     */
+    private static void bench_generated()
+    {
+        String corpus = Corpus.generate(Corpus.Profile.TYPICAL, 42, 64 << 20);
+        for (int i = 0; i < 3; ++ i) {
+            long start = System.nanoTime();
+            Lexer.lex(corpus);
+            long middle = System.nanoTime();
+            DefaultDialectLexer.lex(corpus);
+            long end = System.nanoTime();
+            System.out.printf("Lexer: %.0f MB/s, generated: %.0f MB/s%n",
+                corpus.length() / ((middle - start) / 1e9) / 1e6,
+                corpus.length() / ((end - middle) / 1e9) / 1e6);
+        }
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
     /**
      * Generates a bunch of input strings, and report the time in ms it took to lex them.
      * (Currently: time to lex 100M tokens, spread accross 10k strings).
@@ -31,6 +70,8 @@ public final class Benchmark
         String[] dumps = new String[reps];
         for (int i = 0; i < reps; ++i) dumps[i] = generate_input_string(n);
         bench(dumps);
+        bench_profiles();
+        bench_generated();
     }
 
     // Results
@@ -0,0 +1,324 @@
+package norswap.core.lexer;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Arrays;
+import java.util.SplittableRandom;
+import java.util.stream.IntStream;
+
+/**
+ * Deterministic generation of large benchmark corpora.
+ * <p>
+ * Unlike {@link Generation}, which generates token streams for round-trip testing, this generates
+ * text directly, with configurable token kind mixes and length distributions ({@link Profile}).
+ * The generated text does not always lex to exactly the intended tokens (e.g. two adjacent
+ * operators merge), but it exercises the intended paths of the lexer in the intended proportions.
+ * <p>
+ * The output is generated in segments of {@link #SEGMENT} chars, in parallel. Each segment has its
+ * own random generator, seeded from the corpus seed and the segment index, so that the output only
+ * depends on the seed (and not on the number of threads).
+ * <p>
+ * All generated characters fit in ISO-8859-1, the encoding used to write corpora to disk (as
+ * expected by {@link OffHeapTokens}).
+ */
+public final class Corpus
+{
+    // ---------------------------------------------------------------------------------------------
+
+    /** Number of chars generated by each parallel task. */
+    public static final int SEGMENT = 1 << 20;
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * A token mix. The weights give the relative frequency of each token kind, indexed by {@link
+     * Tokens.Kind#ordinal()} (EOF excluded). The maximum lengths bound the long tails of the
+     * length distributions: most tokens are short, but lengths up to the maximum occur.
+     */
+    public enum Profile
+    {
+        //                 id  int str chr brk op  sp  nl  gbg cmt   cmt_lines gbg_len lit_len
+        TYPICAL      (ints(30,  5,  3,  1, 12, 15, 20, 10,  0,  4),        4,      2,     40),
+        UNIFORM      (ints(10, 10, 10, 10, 10, 10, 10, 10, 10, 10),        4,      4,     10),
+        LONG_COMMENTS(ints(20,  2,  2,  0, 10, 10, 20, 10,  0, 30),     2000,      2,     40),
+        LONG_GARBAGE (ints(20,  5,  2,  1, 10, 10, 20, 10, 30,  2),        4,  20000,     40),
+        HUGE_LITERALS(ints(10, 20, 20,  5, 10, 10, 20, 10,  0,  2),        4,      2, 200000);
+
+        final int[] cumulative_weights;
+        final int max_comment_lines;
+        final int max_garbage_len;
+        final int max_literal_len;
+
+        Profile (int[] weights, int max_comment_lines, int max_garbage_len, int max_literal_len)
+        {
+            cumulative_weights = weights.clone();
+            Arrays.parallelPrefix(cumulative_weights, Integer::sum);
+            this.max_comment_lines = max_comment_lines;
+            this.max_garbage_len = max_garbage_len;
+            this.max_literal_len = max_literal_len;
+        }
+
+        private static int[] ints (int... xs) {
+            return xs;
+        }
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    private static final String[] KEYWORDS = {
+        "if", "else", "for", "while", "return", "int", "void", "class", "new", "this" };
+
+    private static final String[] OPERATORS = {
+        "=", "+", "-", "*", ".", ",", ";", ":", "==", "!=", "<", ">", "<=", "->", "&&", "||",
+        "+=" };
+
+    private static final String BRACKETS = "()[]{}";
+
+    private static final String GARBAGE = "#\té\u0001";
+
+    private static final String ID_CHARS =
+        "abcdefghijklmnopqrstuvwxyzABCDEFGHIJKLMNOPQRSTUVWXYZ_0123456789";
+
+    private static final String[] ESCAPES = { "\\n", "\\t", "\\\"", "\\'", "\\\\" };
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Generates {@code chars} chars (a little more, to finish the last token) of text following
+     * {@code profile}, nul-terminated as expected by {@link Lexer#lex(String)}.
+     */
+    public static String generate (Profile profile, long seed, int chars)
+    {
+        char[][] segments = segments(profile, seed, 0, (chars + SEGMENT - 1) / SEGMENT, chars);
+        StringBuilder b = new StringBuilder(chars + 1);
+        for (char[] segment: segments) b.append(segment);
+        return b.append('\0').toString();
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Writes {@code chars} chars (a little more, to finish the last token) of text following
+     * {@code profile} to {@code file}, in ISO-8859-1 and without nul terminator. At most
+     * {@code 2 * parallelism} segments are held in memory at any time, so the corpus can be much
+     * larger than the heap.
+     */
+    public static void write (Path file, Profile profile, long seed, long chars) throws IOException
+    {
+        long count = (chars + SEGMENT - 1) / SEGMENT;
+        int batch = 2 * Runtime.getRuntime().availableProcessors();
+
+        try (OutputStream out = Files.newOutputStream(file)) {
+            for (long first = 0; first < count; first += batch) {
+                int n = (int) Math.min(batch, count - first);
+                long remaining = chars - first * SEGMENT;
+                for (char[] segment: segments(profile, seed, first, n, remaining))
+                    out.write(new String(segment).getBytes(StandardCharsets.ISO_8859_1));
+            }
+        }
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Generates {@code n} segments starting at segment index {@code first}, in parallel, where
+     * {@code remaining} chars remain to be generated from the first segment on.
+     */
+    private static char[][] segments (
+            Profile profile, long seed, long first, int n, long remaining)
+    {
+        char[][] segments = new char[n][];
+        IntStream.range(0, n).parallel().forEach(i -> {
+            int size = (int) Math.min(SEGMENT, remaining - (long) i * SEGMENT);
+            SplittableRandom random = new SplittableRandom(Hashing.mix(seed + first + i));
+            segments[i] = new Segment(profile, random, size).generate();
+        });
+        return segments;
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Generates a segment of text in a growable char buffer.
+     */
+    private static final class Segment
+    {
+        final Profile profile;
+        final SplittableRandom random;
+        final int size;
+
+        char[] buf;
+        int len;
+
+        /** Current indentation depth, changed by brackets. */
+        int depth;
+
+        Segment (Profile profile, SplittableRandom random, int size)
+        {
+            this.profile = profile;
+            this.random = random;
+            this.size = size;
+            this.buf = new char[size + 64];
+        }
+
+        char[] generate()
+        {
+            while (len < size) token();
+            return Arrays.copyOf(buf, len);
+        }
+
+        void append (char c)
+        {
+            if (len == buf.length) buf = Arrays.copyOf(buf, len * 2);
+            buf[len++] = c;
+        }
+
+        void append (String str)
+        {
+            for (int i = 0; i < str.length(); ++ i) append(str.charAt(i));
+        }
+
+        char pick (String chars)
+        {
+            return chars.charAt(random.nextInt(chars.length()));
+        }
+
+        /**
+         * Returns a length in [1, max], skewed towards short lengths but with a long tail.
+         */
+        int length (int max)
+        {
+            double u = random.nextDouble();
+            return 1 + (int) (u * u * u * u * (max - 1));
+        }
+
+        void indent()
+        {
+            for (int i = 4 * depth; i > 0; -- i) append(' ');
+        }
+
+        void token()
+        {
+            int[] weights = profile.cumulative_weights;
+            int r = random.nextInt(weights[weights.length - 1]);
+            int kind = 0;
+            while (r >= weights[kind]) ++ kind;
+
+            switch (Tokens.Kind.VALUES[kind])
+            {
+                case IDENTIFIER:
+                    if (random.nextInt(3) == 0) {
+                        append(KEYWORDS[random.nextInt(KEYWORDS.length)]);
+                    } else {
+                        append(pick("abcdefghijklmnopqrstuvwxyz_"));
+                        for (int i = length(24) - 1; i > 0; -- i) append(pick(ID_CHARS));
+                    }
+                    append(' ');
+                    break;
+
+                case INT_LITERAL:
+                    int digits = profile.max_literal_len > 1000
+                        ? length(profile.max_literal_len / 100)
+                        : 1 + random.nextInt(5);
+                    append((char) ('1' + random.nextInt(9)));
+                    for (int i = 1; i < digits; ++ i) append((char) ('0' + random.nextInt(10)));
+                    append(' ');
+                    break;
+
+                case STRING_LITERAL:
+                    append('"');
+                    for (int i = length(profile.max_literal_len); i > 1; -- i) {
+                        if (random.nextInt(20) == 0)
+                            append(ESCAPES[random.nextInt(ESCAPES.length)]);
+                        else
+                            append(pick(ID_CHARS + "  "));
+                    }
+                    append('"');
+                    break;
+
+                case CHAR_LITERAL:
+                    append('\'');
+                    if (random.nextInt(5) == 0) append(ESCAPES[random.nextInt(ESCAPES.length)]);
+                    else append(pick(ID_CHARS));
+                    append('\'');
+                    break;
+
+                case BRACKET:
+                    char c = pick(BRACKETS);
+                    append(c);
+                    if (c == '{') ++ depth;
+                    else if (c == '}' && depth > 0) -- depth;
+                    break;
+
+                case OPERATOR:
+                    append(OPERATORS[random.nextInt(OPERATORS.length)]);
+                    break;
+
+                case SPACES:
+                    append(' ');
+                    if (random.nextInt(8) == 0) append("   ");
+                    break;
+
+                case NEWLINE:
+                    append('\n');
+                    indent();
+                    break;
+
+                case GARBAGE:
+                    for (int i = length(profile.max_garbage_len); i > 0; -- i)
+                        append(pick(GARBAGE));
+                    append(' ');
+                    break;
+
+                case COMMENT:
+                    int lines = length(profile.max_comment_lines);
+                    append('\n');
+                    for (int i = 0; i < lines; ++ i) {
+                        indent();
+                        append("// ");
+                        for (int j = length(80); j > 0; -- j) append(pick(ID_CHARS + "   .,"));
+                        append('\n');
+                    }
+                    indent();
+                    break;
+
+                default:
+                    throw new AssertionError();
+            }
+        }
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Writes a corpus to disk.
+     * <p>
+     * Usage: {@code Corpus <file> <profile> <seed> <chars>}, e.g.
+     * {@code Corpus /tmp/corpus.txt TYPICAL 42 1000000000}.
+     */
+    public static void main (String[] args) throws IOException
+    {
+        if (args.length != 4) {
+            System.err.println("usage: Corpus <file> <profile> <seed> <chars>");
+            System.err.println("profiles: " + Arrays.toString(Profile.values()));
+            System.exit(1);
+        }
+
+        Path file = Paths.get(args[0]);
+        Profile profile = Profile.valueOf(args[1]);
+        long seed = Long.parseLong(args[2]);
+        long chars = Long.parseLong(args[3]);
+
+        long start = System.nanoTime();
+        write(file, profile, seed, chars);
+        double secs = (System.nanoTime() - start) / 1e9;
+        System.out.printf("wrote %d bytes in %.2f s (%.0f MB/s)%n",
+            Files.size(file), secs, Files.size(file) / secs / 1e6);
+    }
+
+    // ---------------------------------------------------------------------------------------------
+}
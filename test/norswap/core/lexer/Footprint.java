@@ -0,0 +1,128 @@
+package norswap.core.lexer;
+
+import norswap.core.lexer.Tokens.Kind;
+import norswap.core.lexer.Tokens.Token;
+import norswap.utils.ArrayStack;
+import org.openjdk.jol.info.GraphLayout;
+import org.openjdk.jol.vm.VM;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Reports the memory footprint of lexed inputs, using JOL (Java Object Layout) to measure the
+ * retained size of object graphs on the running JVM.
+ * <p>
+ * For each {@link Corpus.Profile}, reports the bytes per token and per input char of the
+ * {@code Token[]} returned by {@link Lexer#lex}, broken down by token kind (token objects and
+ * their payloads: strings, comment line arrays), along with the token array and the transient
+ * {@link ArrayStack} used while lexing. It then compares this with the other representations
+ * offered by the library.
+ * <p>
+ * Usage: {@code Footprint [chars]} (default: 4M chars per profile). For accurate results on JDK 9+,
+ * run with {@code -Djdk.attach.allowAttachSelf=true}, so that JOL can use its agent.
+ */
+public final class Footprint
+{
+    // ---------------------------------------------------------------------------------------------
+
+    private static long size (Object... roots)
+    {
+        return roots.length == 0 ? 0 : GraphLayout.parseInstance(roots).totalSize();
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    private static void row (String name, long count, long bytes, int tokens, int chars)
+    {
+        System.out.printf("  %-22s %9d %12d %10.1f %10.1f %10.2f%n",
+            name, count, bytes,
+            count == 0 ? 0.0 : bytes / (double) count,
+            bytes / (double) tokens,
+            bytes / (double) chars);
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    private static void header (String title)
+    {
+        System.out.printf("  %-22s %9s %12s %10s %10s %10s%n",
+            title, "count", "bytes", "B/item", "B/token", "B/char");
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Prints the footprint report for the given input (nul-terminated).
+     */
+    public static void report (String name, String input)
+    {
+        Token[] tokens = Lexer.lex(input);
+        int n = tokens.length;
+        int chars = input.length() - 1;
+
+        System.out.println(name + ": " + chars + " chars, " + n + " tokens");
+        header("Token[] by kind");
+
+        // Sorting tokens by kind: payloads are never shared between tokens, so the sizes of the
+        // kinds add up to the size of all tokens.
+        List<List<Token>> by_kind = new ArrayList<>();
+        for (int k = 0; k < Kind.VALUES.length; ++ k) by_kind.add(new ArrayList<>());
+        for (Token token: tokens) by_kind.get(token.kind().ordinal()).add(token);
+
+        long objects = 0;
+        for (Kind kind: Kind.VALUES) {
+            List<Token> list = by_kind.get(kind.ordinal());
+            long bytes = size(list.toArray());
+            objects += bytes;
+            row(kind.name().toLowerCase(), list.size(), bytes, n, chars);
+        }
+
+        long total = size((Object) tokens);
+        row("token array", 1, total - objects, n, chars);
+        row("total retained", n, total, n, chars);
+
+        // The lexer accumulates tokens in a stack before copying them to the returned array.
+        ArrayStack<Token> stack = new ArrayStack<>(1024);
+        for (int i = 0; i < n; ++ i) stack.push(null);
+        row("transient ArrayStack", 1, size(stack), n, chars);
+
+        System.out.println();
+        header("Representations");
+
+        row("Token[]", n, total, n, chars);
+
+        CompactTokens compact = Lexer.lex_compact(input);
+        row("CompactTokens", n, size(compact), n, chars);
+
+        byte[] encoded = TokenCodec.encode(tokens);
+        row("TokenCodec encoding", n, encoded.length, n, chars);
+
+        char[] src = Arrays.copyOf(input.toCharArray(), chars);
+        TokenSequence decoded = TokenCodec.decode(ByteBuffer.wrap(encoded), src, 0, 0);
+        row("SourceTokens (+source)", n, size(decoded), n, chars);
+        row("SourceTokens (-source)", n, size(decoded) - size((Object) src), n, chars);
+
+        // OffHeapTokens: a kind byte and an int position per token, outside of the heap.
+        row("OffHeapTokens (native)", n, 5L * n, n, chars);
+
+        row("source (String)", 1, size(input), n, chars);
+        System.out.println();
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    public static void main (String[] args)
+    {
+        int chars = args.length > 0 ? Integer.parseInt(args[0]) : 4 << 20;
+        System.out.println(VM.current().details());
+
+        for (Corpus.Profile profile: Corpus.Profile.values())
+            report(profile.name(), Corpus.generate(profile, 42, chars));
+
+        report("Generation", Generation.generate_input_string(chars / 10));
+    }
+
+    // ---------------------------------------------------------------------------------------------
+}
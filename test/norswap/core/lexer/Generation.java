@@ -2,17 +2,63 @@ package norswap.core.lexer;
 
 import norswap.core.lexer.Tokens.*;
 import norswap.utils.ArrayStack;
+import java.util.Random;
 
 import static norswap.core.lexer.Tokens.unlex;
-import static norswap.utils.Chance.*;
 
 /**
  * Logic to help generate random token streams.
+ * <p>
+ * Each thread draws from its own random generator, which can be seeded with {@link #seed(long)}
+ * to make the generated streams reproducible.
  */
 public final class Generation
 {
     // ---------------------------------------------------------------------------------------------
 
+    private static final ThreadLocal<Random> RANDOM = ThreadLocal.withInitial(Random::new);
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Seeds the random generator of the current thread: the streams subsequently generated on this
+     * thread are determined by the seed and the requested sizes.
+     */
+    public static void seed (long seed)
+    {
+        RANDOM.get().setSeed(seed);
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    private static int random (int n)
+    {
+        return RANDOM.get().nextInt(n);
+    }
+
+    private static boolean flip()
+    {
+        return RANDOM.get().nextBoolean();
+    }
+
+    private static boolean probability (int n, int d)
+    {
+        return random(d) < n;
+    }
+
+    @SafeVarargs
+    private static <T> T select (T... items)
+    {
+        return items[random(items.length)];
+    }
+
+    private static char selectp (char... items)
+    {
+        return items[random(items.length)];
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
     private static String[] ESCAPES
         = new String[] { "\\\"", "\\'", "\\\\", "\\n", "\\t", "\\0" };
 
@@ -0,0 +1,287 @@
+package norswap.core.lexer;
+
+import norswap.core.lexer.Tokens.Token;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Parallel randomized round-trip testing of {@link Lexer#lex}, {@link Tokens#unlex(Token[])} and
+ * {@link Tokens#synchronize(Token[])}, with throughput reporting and shrinking of failing cases.
+ * <p>
+ * Each worker thread generates cases from its own seed (derived from the base seed and the worker
+ * index), and each case is generated from a seed drawn from the worker's seed sequence, so that
+ * any failure can be reproduced from its case seed alone (see {@link #check_case}).
+ * <p>
+ * For each case, a random token stream is generated (see {@link Generation}), and the following
+ * properties are checked:
+ * <ul>
+ * <li>lexing the text of the stream yields the stream (positions included);</li>
+ * <li>lexing the result of {@link Tokens#unlex(Token[])} on the lexed tokens yields the same tokens
+ *     (modulo positions);</li>
+ * <li>lexing the result of {@link Tokens#synchronize(Token[])} on a copy of the lexed tokens
+ *     yields the copy (positions included).</li>
+ * </ul>
+ * <p>
+ * Failing cases are shrunk, first to the shortest failing prefix of the generated stream (which is
+ * itself a generated stream), then by deleting tokens from the text while the last two properties
+ * (which do not depend on the generated stream) still fail.
+ */
+public final class RoundTrip
+{
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * A failing case.
+     */
+    public static final class Failure
+    {
+        /** Seed and size with which the case can be regenerated (see {@link #check_case}). */
+        public final long seed;
+        public final int size;
+
+        /** Description of the violated property. */
+        public final String message;
+
+        /** Smallest failing input found by shrinking. */
+        public final String input;
+
+        Failure (long seed, int size, String message, String input) {
+            this.seed = seed;
+            this.size = size;
+            this.message = message;
+            this.input = input;
+        }
+
+        @Override public String toString() {
+            return "seed " + seed + ", size " + size + ": " + message
+                + "\nshrunk input: \"" + Escapes.escape(input) + "\"";
+        }
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Outcome of a run.
+     */
+    public static final class Result
+    {
+        public final long cases;
+        public final long tokens;
+        public final long nanos;
+
+        /** The first failure found, or null. */
+        public final Failure failure;
+
+        Result (long cases, long tokens, long nanos, Failure failure) {
+            this.cases = cases;
+            this.tokens = tokens;
+            this.nanos = nanos;
+            this.failure = failure;
+        }
+
+        public double cases_per_second() {
+            return cases * 1e9 / nanos;
+        }
+
+        public double tokens_per_second() {
+            return tokens * 1e9 / nanos;
+        }
+
+        @Override public String toString() {
+            return String.format("%d cases, %d tokens in %.1f s (%.0f cases/s, %.0f tokens/s)%s",
+                cases, tokens, nanos / 1e9, cases_per_second(), tokens_per_second(),
+                failure == null ? "" : "\nFAILURE: " + failure);
+        }
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Generates a case of approximately {@code size} tokens from {@code seed}, and returns a
+     * description of the first violated property, or null if none is.
+     */
+    public static String check_case (long seed, int size)
+    {
+        Generation.seed(seed);
+        return check(Generation.generate_input(size));
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    private static String check (Generation.Input input)
+    {
+        Token[] lexed = Lexer.lex(input.str);
+        if (!Tokens.equals(input.tokens, lexed, true))
+            return "lexed tokens differ from generated tokens: "
+                + first_difference(input.tokens, lexed);
+
+        return check_tokens(lexed);
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Checks the unlex and synchronize properties on the result of lexing {@code str} (a
+     * nul-terminated string). Returns a description of the first violated property, or null.
+     */
+    public static String check_text (String str)
+    {
+        return check_tokens(Lexer.lex(str));
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    private static String check_tokens (Token[] lexed)
+    {
+        Token[] relexed = Lexer.lex(Tokens.unlex(lexed));
+        if (!Tokens.equals(lexed, relexed, false))
+            return "unlexed tokens lex differently: " + first_difference(lexed, relexed);
+
+        Token[] copy = new Token[lexed.length];
+        for (int i = 0; i < copy.length; ++ i) copy[i] = Tokens.clone(lexed[i]);
+        Token[] synced = Lexer.lex(Tokens.synchronize(copy));
+        if (!Tokens.equals(copy, synced, true))
+            return "synchronized tokens lex differently: " + first_difference(copy, synced);
+
+        return null;
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    private static String first_difference (Token[] expected, Token[] actual)
+    {
+        int len = Math.min(expected.length, actual.length);
+        for (int i = 0; i < len; ++ i)
+            if (!Tokens.equals(expected[i], actual[i], true))
+                return "at index " + i + ", expected " + expected[i] + " but got " + actual[i];
+        return "expected " + expected.length + " tokens but got " + actual.length;
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Shrinks the failing case generated from {@code seed} and {@code size}.
+     */
+    static Failure shrink (long seed, int size, String message)
+    {
+        // shortest failing generated prefix (the generator draws tokens in order)
+        int lo = 1, hi = size;
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            if (check_case(seed, mid) != null) hi = mid; else lo = mid + 1;
+        }
+        if (hi < size) message = check_case(seed, hi);
+
+        Generation.seed(seed);
+        String input = Generation.generate_input(hi).str;
+
+        if (check_text(input) != null)
+            input = shrink_text(input);
+
+        return new Failure(seed, hi, message, input);
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Deletes runs of tokens (of decreasing sizes) from the failing {@code str}, as long as
+     * {@link #check_text} still fails.
+     */
+    private static String shrink_text (String str)
+    {
+        for (int run = Lexer.lex(str).length / 2; run >= 1; run /= 2) {
+            Token[] tokens = Lexer.lex(str);
+            int i = 0;
+            while (i + run < tokens.length) { // never delete the EOF token
+                int start = tokens[i].pos;
+                int end = tokens[i + run - 1].pos + tokens[i + run - 1].len;
+                String candidate = str.substring(0, start) + str.substring(end);
+                if (check_text(candidate) != null) {
+                    str = candidate;
+                    tokens = Lexer.lex(str);
+                } else {
+                    ++ i;
+                }
+            }
+        }
+        return str;
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Runs cases of approximately {@code size} tokens on {@code threads} threads, until
+     * {@code millis} milliseconds elapsed or a case fails. If {@code report_millis} is positive,
+     * the throughput so far is printed at this interval.
+     */
+    public static Result run (int threads, long seed, int size, long millis, long report_millis)
+        throws InterruptedException
+    {
+        AtomicLong cases = new AtomicLong();
+        AtomicLong tokens = new AtomicLong();
+        AtomicReference<Failure> failure = new AtomicReference<>();
+        long start = System.nanoTime();
+        long deadline = start + millis * 1_000_000;
+
+        List<Thread> workers = new ArrayList<>();
+        for (int w = 0; w < threads; ++ w) {
+            long worker_seed = Hashing.mix(seed + w);
+            Thread worker = new Thread(() -> {
+                long case_seed = worker_seed;
+                while (failure.get() == null && System.nanoTime() < deadline) {
+                    case_seed = Hashing.mix(case_seed);
+                    Generation.seed(case_seed);
+                    Generation.Input input = Generation.generate_input(size);
+                    String message = check(input);
+                    if (message != null) {
+                        failure.compareAndSet(null, shrink(case_seed, size, message));
+                        return;
+                    }
+                    cases.incrementAndGet();
+                    tokens.addAndGet(input.tokens.length);
+                }
+            }, "round-trip-" + w);
+            worker.setDaemon(true);
+            workers.add(worker);
+            worker.start();
+        }
+
+        for (Thread worker: workers) {
+            while (worker.isAlive()) {
+                worker.join(report_millis > 0 ? report_millis : 0);
+                if (report_millis > 0 && worker.isAlive())
+                    System.out.println(
+                        new Result(cases.get(), tokens.get(), System.nanoTime() - start, null));
+            }
+        }
+
+        return new Result(cases.get(), tokens.get(), System.nanoTime() - start, failure.get());
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Usage: {@code RoundTrip [seconds] [threads] [seed] [size]}. Defaults to a 10 seconds run on
+     * all cores, with a random seed and cases of 100 tokens. Exits with status 1 on failure.
+     * <p>
+     * To reproduce a reported failure, call {@link #check_case} with its seed and size.
+     */
+    public static void main (String[] args) throws InterruptedException
+    {
+        long seconds = args.length > 0 ? Long.parseLong(args[0]) : 10;
+        int threads  = args.length > 1
+            ? Integer.parseInt(args[1])
+            : Runtime.getRuntime().availableProcessors();
+        long seed    = args.length > 2 ? Long.parseLong(args[2]) : System.nanoTime();
+        int size     = args.length > 3 ? Integer.parseInt(args[3]) : 100;
+
+        System.out.println("seed " + seed + ", " + threads + " threads, " + seconds + " s");
+        Result result = run(threads, seed, size, seconds * 1000, 1000);
+        System.out.println(result);
+        if (result.failure != null) System.exit(1);
+    }
+
+    // ---------------------------------------------------------------------------------------------
+}
@@ -2,9 +2,19 @@ package norswap.core.lexer;
 
 import norswap.core.lexer.Tokens.*;
 import norswap.utils.ArrayStack;
-import java.lang.reflect.Field;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.Objects;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Random;
+import java.util.Spliterator;
+import java.util.concurrent.CountDownLatch;
+import java.util.stream.Stream;
 
 import static norswap.core.lexer.Generation.*;
 import static norswap.core.lexer.Generation.generate_input;
@@ -19,21 +29,11 @@ public final class Test
     // ---------------------------------------------------------------------------------------------
 
     /**
-     * Compares two tokens for equality.
+     * Compares two tokens for equality, including their positions.
      */
     public static boolean equals (Token a, Token b)
     {
-        try {
-            if (a == b) return true;
-            if (a == null || b == null) return false;
-            Class<?> cl = a.getClass();
-            if (cl != b.getClass()) return false;
-            for (Field field: cl.getFields())
-                if (!Objects.deepEquals(field.get(a), field.get(b)))
-                    return false;
-            return true;
-        }
-        catch (Exception e) { return false; }
+        return Tokens.equals(a, b, true);
     }
 
     // ---------------------------------------------------------------------------------------------
@@ -70,16 +70,847 @@ public final class Test
                 System.exit(1);
             }
         }
+
+        check_stats(input.str, tokens1);
+        check_compact(input.str, tokens1);
+        check_result(input.str, tokens1);
+        check_skip_comments(input.str, tokens1);
+        check_unicode_identifiers(input.str, tokens1);
+        check_generated(input.str, tokens1);
+        check_checkpoints(input.str, tokens1);
+        check_viewport(input.str, tokens1);
+        check_lossless_unlex(input.str, tokens1);
+        check_diff(input.str, tokens1);
+        check_flow(input.str, tokens1);
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Checks that the compact token stream returned by {@link Lexer#lex_compact} is equivalent to
+     * the given token stream, and that mutating its tokens does not affect other streams.
+     *
+     * Exits on failure.
+     */
+    private static void check_compact (String str, Token[] tokens)
+    {
+        CompactTokens sequence = Lexer.lex_compact(str);
+        Token eof = sequence.token(sequence.size() - 1);
+        eof.pos = 42;
+        ((Spaces) Lexer.lex_compact(" \0").token(0)).count = 2;
+
+        Token[] compact = sequence.to_array();
+        boolean equal = compact.length == tokens.length
+            && sequence.token(sequence.size() - 1) != eof
+            && ((Spaces) Lexer.lex_compact(" \0").token(0)).count == 1;
+        for (int i = 0; equal && i < tokens.length; ++ i)
+            equal = equals(tokens[i], compact[i]);
+
+        if (!equal) {
+            System.err.println("compact mismatch: " + Arrays.toString(compact));
+            System.exit(1);
+        }
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Checks that the immutable token stream returned by {@link Lexer#lex_result} is equivalent to
+     * the given token stream, whether its comments are split eagerly or not, and that rebuilding
+     * it from its builder or from tokens preserves it.
+     *
+     * Exits on failure.
+     */
+    private static void check_result (String str, Token[] tokens)
+    {
+        LexResult result = Lexer.lex_result(str);
+        Token[] rebuilt = result.to_builder().build().to_array();
+
+        // comments are split on demand from strings, but eagerly from arrays
+        char[] src = str.toCharArray();
+        LexResult split = Lexer.lex_result(src, 0, src.length - 1);
+
+        if (!Tokens.equals(result.to_array(), tokens, true)
+                || !Tokens.equals(rebuilt, tokens, true)
+                || !Tokens.equals(LexResult.of(tokens).to_array(), tokens, true)
+                || !Tokens.equals(result, split, true)
+                || Tokens.hash(result, true) != Tokens.hash(split, true)) {
+            System.err.println("result mismatch: " + result);
+            System.exit(1);
+        }
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Checks that {@link Lexer#lex_skip_comments} yields the given token stream, except that
+     * comments have no content (but the same line count).
+     *
+     * Exits on failure.
+     */
+    private static void check_skip_comments (String str, Token[] tokens)
+    {
+        Token[] skipped = Lexer.lex_skip_comments(str);
+        boolean equal = skipped.length == tokens.length;
+
+        for (int i = 0; equal && i < tokens.length; ++ i) {
+            if (tokens[i] instanceof Tokens.Comment) {
+                Tokens.Comment a = (Tokens.Comment) tokens[i];
+                Tokens.Comment b = (Tokens.Comment) skipped[i];
+                equal = b.skipped() && a.block == b.block && a.align == b.align
+                    && a.line_count() == b.line_count()
+                    && a.pos == b.pos && a.len == b.len;
+            }
+            else equal = equals(tokens[i], skipped[i]);
+        }
+
+        if (!equal) {
+            System.err.println("skipped comments mismatch: " + Arrays.toString(skipped));
+            System.exit(1);
+        }
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Checks that lexing with Unicode identifiers enabled covers the whole input, doesn't change
+     * the tokens of ASCII inputs, and merges non-ASCII letters with the surrounding identifiers.
+     *
+     * Exits on failure.
+     */
+    private static void check_unicode_identifiers (String str, Token[] tokens)
+    {
+        LexerOptions options = new LexerOptions();
+        options.unicode_identifiers = true;
+        Token[] unicode = Lexer.lex(str, options);
+        boolean ascii = str.chars().allMatch(c -> c < 0x80);
+
+        boolean ok = Tokens.unlex(unicode).equals(Tokens.unlex(tokens))
+            && (!ascii || Tokens.equals(unicode, tokens, true));
+
+        Token[] sample = Lexer.lex("naïve \uD835\uDC65y \u0085x é1\0", options);
+        ok = ok && sample.length == 9
+            && ((Tokens.Identifier) sample[0]).str.equals("naïve")
+            && ((Tokens.Identifier) sample[2]).str.equals("\uD835\uDC65y")
+            && sample[4] instanceof Tokens.Garbage
+            && ((Tokens.Identifier) sample[7]).str.equals("é1");
+
+        if (!ok) {
+            System.err.println("unicode identifiers mismatch: " + Arrays.toString(unicode));
+            System.exit(1);
+        }
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Checks that the lexer generated from the default spec ({@code test/dialects}) yields the
+     * given token stream.
+     *
+     * Exits on failure.
+     */
+    private static void check_generated (String str, Token[] tokens)
+    {
+        Token[] generated = DefaultDialectLexer.lex(str);
+
+        if (!Tokens.equals(generated, tokens, true)) {
+            System.err.println("generated lexer mismatch: " + Arrays.toString(generated));
+            System.exit(1);
+        }
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Checks the lexer generated from the script dialect spec ({@code test/dialects}): '#'
+     * comments and int literal suffixes.
+     *
+     * Exits on failure.
+     */
+    private static void check_script_dialect()
+    {
+        Token[] tokens = ScriptDialectLexer.lex("x = 10L+7 # note\n  # a\n  #b\nfoo#bar\0");
+        Tokens.IntLiteral literal = (Tokens.IntLiteral) tokens[4];
+
+        boolean ok = tokens.length == 13
+            && literal.long_value() == 10 && literal.suffix().equals("L")
+            && ((Tokens.IntLiteral) tokens[6]).suffix().isEmpty()
+            && Arrays.equals(((Tokens.Comment) tokens[8]).lines(), new String[] { "note" })
+            && Arrays.equals(((Tokens.Comment) tokens[9]).lines(), new String[] { "a", "b" })
+            && ((Tokens.Comment) tokens[9]).block && ((Tokens.Comment) tokens[9]).align == 2
+            && ((Tokens.Identifier) tokens[10]).str.equals("foo")
+            && !((Tokens.Comment) tokens[11]).block;
+
+        if (!ok) {
+            System.err.println("script dialect mismatch: " + Arrays.toString(tokens));
+            System.exit(1);
+        }
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Checks that resuming lexing from each of the checkpoints recorded by
+     * {@link Lexer#lex(String, int, List)} yields the corresponding suffix of the given token
+     * stream.
+     *
+     * Exits on failure.
+     */
+    private static void check_checkpoints (String str, Token[] tokens)
+    {
+        List<LexerState> checkpoints = new ArrayList<>();
+        Lexer.lex(str, 2, checkpoints);
+
+        for (LexerState state: checkpoints) {
+            Token[] suffix = Lexer.resume(str, state);
+            boolean equal = suffix.length == tokens.length - state.token;
+            for (int i = 0; equal && i < suffix.length; ++ i)
+                equal = equals(tokens[state.token + i], suffix[i]);
+
+            if (!equal) {
+                System.err.println(
+                    "resume mismatch from " + state + ": " + Arrays.toString(suffix));
+                System.exit(1);
+            }
+        }
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Checks that the line spans returned by {@link ViewportLexer#lex_lines} match the given
+     * token stream, both for the whole input and for a range of lines in the middle of the input.
+     *
+     * Exits on failure.
+     */
+    private static void check_viewport (String str, Token[] tokens)
+    {
+        List<Integer> line_pos = new ArrayList<>();
+        line_pos.add(0);
+        for (int i = 0; i < str.length() - 1; ++ i)
+            if (str.charAt(i) == '\n') line_pos.add(i + 1);
+
+        int n = line_pos.size();
+        List<List<Integer>> expected = new ArrayList<>();
+        for (int i = 0; i < n; ++ i) expected.add(new ArrayList<>());
+
+        int line = 0;
+        for (Token token: tokens) {
+            while (line + 1 < n && token.pos >= line_pos.get(line + 1)) ++ line;
+            expected.get(line).add(token.kind().ordinal());
+            expected.get(line).add(token.pos - line_pos.get(line));
+            for (int l = line + 1; l < n && line_pos.get(l) < token.pos + token.len; ++ l) {
+                expected.get(l).add(token.kind().ordinal());
+                expected.get(l).add(0);
+            }
+        }
+
+        ViewportLexer viewport = new ViewportLexer(str);
+        int first = n / 3;
+        int[][] middle = viewport.lex_lines(first, 2 * n / 3 + 1);
+        int[][] all = viewport.lex_lines(0, n + 1);
+
+        boolean equal = viewport.line_count() == n && all.length == n;
+        for (int i = 0; equal && i < n; ++ i)
+            equal = Arrays.equals(all[i], expected.get(i).stream().mapToInt(x -> x).toArray());
+        for (int i = 0; equal && i < middle.length; ++ i)
+            equal = Arrays.equals(middle[i], all[first + i]);
+
+        if (!equal) {
+            System.err.println("viewport mismatch: " + Arrays.deepToString(all));
+            System.exit(1);
+        }
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Checks that {@link Tokens#unlex(Token[], CharSequence)} reproduces the input exactly, and
+     * only generates the text of tokens that have no position or were modified in place.
+     *
+     * Exits on failure.
+     */
+    private static void check_lossless_unlex (String str, Token[] tokens)
+    {
+        String unlexed = Tokens.unlex(tokens, str);
+        String expected = str;
+
+        Token[] edited = tokens.clone();
+        int renamed = edited.length;
+        for (int i = edited.length - 1; i >= 0; -- i) {
+            if (!(edited[i] instanceof Identifier)) continue;
+            Token token = edited[i];
+            edited[i] = new Identifier("renamed");
+            expected = expected.substring(0, token.pos) + "renamed"
+                + expected.substring(token.pos + token.len);
+            renamed = i;
+            break;
+        }
+
+        // modified in place: the position is kept, but the text is stale
+        for (int i = renamed - 1; i >= 0; -- i) {
+            if (!(edited[i] instanceof IntLiteral)) continue;
+            IntLiteral token = Tokens.clone((IntLiteral) edited[i]);
+            token.str += "1";
+            edited[i] = token;
+            expected = expected.substring(0, token.pos) + token.str
+                + expected.substring(token.pos + token.len);
+            break;
+        }
+
+        String edited_unlexed = Tokens.unlex(edited, str.toCharArray());
+
+        if (!unlexed.equals(str) || !edited_unlexed.equals(expected)) {
+            System.err.println("lossless unlex mismatch: " + Escapes.escape(edited_unlexed));
+            System.exit(1);
+        }
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Checks that applying the edit script computed by {@link TokenDiff#diff(Token[], Token[])}
+     * between the given token stream and a randomly edited copy yields the copy, and that the
+     * script is minimal: its size is the LCS distance between the streams.
+     *
+     * Exits on failure.
+     */
+    private static void check_diff (String str, Token[] tokens)
+    {
+        Random random = new Random(str.hashCode());
+        List<Token> list = new ArrayList<>();
+        for (Token token: tokens) {
+            int r = random.nextInt(8);
+            if (r == 0) continue; // deleted
+            if (r == 1) list.add(tokens[random.nextInt(tokens.length)]); // inserted
+            list.add(token);
+        }
+        Token[] edited = list.toArray(new Token[0]);
+        List<TokenDiff.Edit> edits = TokenDiff.diff(tokens, edited);
+
+        List<Token> applied = new ArrayList<>();
+        int size = 0;
+        int i = 0;
+        for (TokenDiff.Edit edit: edits) {
+            applied.addAll(Arrays.asList(tokens).subList(i, edit.old_start));
+            applied.addAll(Arrays.asList(edited).subList(edit.new_start, edit.new_end));
+            size += edit.deleted() + edit.inserted();
+            i = edit.old_end;
+        }
+        applied.addAll(Arrays.asList(tokens).subList(i, tokens.length));
+
+        // lcs[i][j]: length of the LCS of tokens[i:] and edited[j:]
+        int[][] lcs = new int[tokens.length + 1][edited.length + 1];
+        for (i = tokens.length - 1; i >= 0; -- i)
+            for (int j = edited.length - 1; j >= 0; -- j)
+                lcs[i][j] = Tokens.equals(tokens[i], edited[j], false)
+                    ? lcs[i + 1][j + 1] + 1
+                    : Math.max(lcs[i + 1][j], lcs[i][j + 1]);
+
+        if (!Tokens.equals(applied.toArray(new Token[0]), edited, false)
+                || size != tokens.length + edited.length - 2 * lcs[0][0]) {
+            System.err.println("diff mismatch: " + edits);
+            System.exit(1);
+        }
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Checks that the batches published by {@link TokenFlow#batches(String, int)}, requested one
+     * at a time, add up to the given token stream.
+     *
+     * Exits on failure.
+     */
+    private static void check_flow (String str, Token[] tokens)
+    {
+        List<Token> received = new ArrayList<>();
+        boolean[] completed = new boolean[1];
+
+        TokenFlow.batches(str, 3).subscribe(new TokenFlow.Subscriber<Token[]>()
+        {
+            TokenFlow.Subscription subscription;
+
+            @Override public void onSubscribe (TokenFlow.Subscription subscription) {
+                this.subscription = subscription;
+                subscription.request(1);
+            }
+
+            @Override public void onNext (Token[] batch) {
+                received.addAll(Arrays.asList(batch));
+                subscription.request(1);
+            }
+
+            @Override public void onError (Throwable throwable) {
+                throwable.printStackTrace();
+                System.exit(1);
+            }
+
+            @Override public void onComplete() {
+                completed[0] = true;
+            }
+        });
+
+        boolean equal = completed[0] && received.size() == tokens.length;
+        for (int i = 0; equal && i < tokens.length; ++ i)
+            equal = equals(tokens[i], received.get(i));
+
+        if (!equal) {
+            System.err.println("flow mismatch: " + received);
+            System.exit(1);
+        }
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Checks that the token counts computed by {@link Lexer#stats} match the given token stream.
+     *
+     * Exits on failure.
+     */
+    private static void check_stats (String str, Token[] tokens)
+    {
+        LexStats stats = Lexer.stats(str);
+        int[] counts = new int[Kind.VALUES.length];
+        for (Token token: tokens) ++ counts[token.kind().ordinal()];
+
+        if (stats.tokens != tokens.length || !Arrays.equals(stats.kind_counts, counts)) {
+            System.err.println("stats mismatch: " + stats);
+            System.exit(1);
+        }
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Checks that the {@link Metrics} listeners are notified before and after each instrumented
+     * operation, with samples that match the tokens, including for inputs larger than the scanner
+     * window.
+     *
+     * Exits on failure.
+     */
+    private static void check_metrics()
+    {
+        String str = generate_input(8000).str;
+        int len = str.length() - 1;
+        char[] src = str.substring(0, len).toCharArray();
+        Token[] tokens = Lexer.lex(str);
+        int[] counts = new int[Kind.VALUES.length];
+        int garbage_chars = 0;
+        for (Token token: tokens) {
+            ++ counts[token.kind().ordinal()];
+            if (token instanceof Garbage) garbage_chars += token.len;
+        }
+
+        List<Metrics.Sample> samples = new ArrayList<>();
+        boolean[] ok = { !Metrics.enabled() && len > 1 << 15 };
+
+        Metrics.Listener listener = new Metrics.Listener() {
+            @Override public Object on_begin (Metrics.Operation operation) {
+                return operation;
+            }
+            @Override public void on_sample (Metrics.Sample sample, Object context) {
+                ok[0] &= context == sample.operation;
+                samples.add(sample);
+            }
+        };
+
+        Metrics.add_listener(listener);
+        try {
+            Lexer.lex(str);
+            Lexer.lex(src, 0, len);
+            Lexer.lex_compact(str);
+            Lexer.lex_result(new StringBuilder(str), 0, len);
+            Lexer.stats(src, 0, len);
+            Tokens.synchronize(Lexer.lex(str));
+        }
+        finally {
+            Metrics.remove_listener(listener);
+        }
+
+        Lexer.lex(str);
+        Metrics.Operation[] operations = {
+            Metrics.Operation.LEX, Metrics.Operation.LEX, Metrics.Operation.LEX,
+            Metrics.Operation.LEX, Metrics.Operation.STATS, Metrics.Operation.LEX,
+            Metrics.Operation.SYNCHRONIZE };
+
+        ok[0] &= !Metrics.enabled() && samples.size() == operations.length;
+        for (int i = 0; ok[0] && i < operations.length; ++ i) {
+            Metrics.Sample sample = samples.get(i);
+            // synchronization outputs the nul terminator as well
+            int chars = sample.operation == Metrics.Operation.SYNCHRONIZE ? len + 1 : len;
+            ok[0] = sample.operation == operations[i]
+                && sample.chars == chars
+                && sample.tokens == tokens.length
+                && Arrays.equals(sample.kind_counts, counts)
+                && sample.garbage_chars == garbage_chars
+                && sample.nanos >= 0;
+        }
+
+        if (!ok[0]) {
+            System.err.println("metrics mismatch: " + samples);
+            System.exit(1);
+        }
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Checks that {@link Tokens#clone(Token[])} makes deep copies, below and above the threshold
+     * for parallel copies, and that {@link CopyOnWriteTokens} only copies the tokens that are
+     * mutated or replaced, leaving the original stream untouched.
+     *
+     * Exits on failure.
+     */
+    private static void check_clone()
+    {
+        Token[] small = Lexer.lex(generate_input(20).str);
+        Token[] large = Lexer.lex(Corpus.generate(Corpus.Profile.UNIFORM, 1, 1 << 20));
+        boolean ok = small.length < Clone.PARALLEL_THRESHOLD
+            && large.length >= Clone.PARALLEL_THRESHOLD;
+
+        for (Token[] tokens: new Token[][] { small, large }) {
+            Token[] copy = Tokens.clone(tokens);
+            ok &= Tokens.equals(copy, tokens, true);
+            for (int i = 0; ok && i < tokens.length; ++ i)
+                ok = copy[i] != tokens[i] && !(tokens[i] instanceof Comment
+                    && ((Comment) copy[i]).lines() == ((Comment) tokens[i]).lines());
+        }
+
+        Token[] original = small.clone();
+        Token first = small[0];
+        CopyOnWriteTokens view = Tokens.copy_on_write(small);
+        ok &= view.copies() == 0 && view.token(0) == first
+            && (view.spliterator().characteristics() & Spliterator.IMMUTABLE) == 0;
+
+        view.mutable(0).pos = -7;
+        Token replacement = new Newline();
+        view.set(1, replacement);
+
+        ok &= view.mutable(0) == view.token(0) && view.pos(0) == -7 && first.pos == 0
+            && view.token(1) == replacement && view.tokens()[1] == replacement
+            && view.token(2) == small[2] && view.copies() == 2
+            && Arrays.equals(small, original);
+
+        if (!ok) {
+            System.err.println("clone mismatch: " + view);
+            System.exit(1);
+        }
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Checks that int literals of any length are lexed as a single token, whose value can be
+     * decoded with the appropriate precision.
+     *
+     * Exits on failure.
+     */
+    private static void check_int_literals()
+    {
+        String big = "123456789012345678901234567890";
+        Token[] tokens = Lexer.lex("007 2147483648 " + big + "\0");
+        Tokens.IntLiteral a = (Tokens.IntLiteral) tokens[0];
+        Tokens.IntLiteral b = (Tokens.IntLiteral) tokens[2];
+        Tokens.IntLiteral c = (Tokens.IntLiteral) tokens[4];
+
+        boolean ok = tokens.length == 6
+            && a.int_value() == 7 && Tokens.unlex(tokens).equals("007 2147483648 " + big + "\0")
+            && b.long_value() == 2147483648L
+            && c.big_value().toString().equals(big);
+
+        try {
+            b.int_value();
+            ok = false;
+        }
+        catch (ArithmeticException e) {
+            // expected
+        }
+
+        if (!ok) {
+            System.err.println("int literals mismatch: " + Arrays.toString(tokens));
+            System.exit(1);
+        }
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Checks that {@link LexCache} coalesces concurrent requests for the same input, evicts the
+     * least recently used entries, and accounts for the weight of the entries it retains.
+     *
+     * Exits on failure.
+     */
+    private static void check_lex_cache()
+    {
+        String big = generate_input(2000).str;
+        LexCache cache = new LexCache(1 << 30);
+        int threads = 8;
+        LexResult[] results = new LexResult[threads];
+        CountDownLatch start = new CountDownLatch(1);
+        List<Thread> workers = new ArrayList<>();
+
+        for (int i = 0; i < threads; ++ i) {
+            int index = i;
+            Thread thread = new Thread(() -> {
+                try {
+                    start.await();
+                }
+                catch (InterruptedException e) {
+                    return;
+                }
+                results[index] = cache.lex(big);
+            });
+            thread.start();
+            workers.add(thread);
+        }
+
+        start.countDown();
+        for (Thread thread: workers) {
+            try {
+                thread.join();
+            }
+            catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        // only one request lexed the input, the others got its result
+        boolean ok = cache.misses() == 1 && cache.hits() == threads - 1;
+        for (LexResult result: results) ok &= result == results[0];
+
+        // three inputs of the same weight, in a cache that holds two of them
+        String a = "a1 + 1\0", b = "b2 + 2\0", c = "c3 + 3\0";
+        LexCache lru = new LexCache(1);
+        lru.lex(a);
+        ok &= lru.size() == 0 && lru.weight() == 0 && lru.misses() == 1;
+
+        LexCache probe = new LexCache(1 << 20);
+        probe.lex(a);
+        long weight = probe.weight(); // the input and tokens
+        ok &= weight > 2L * a.length() && probe.size() == 1;
+
+        lru = new LexCache(2 * weight);
+        LexResult result_a = lru.lex(a);
+        ok &= lru.weight() == weight;
+        lru.lex(b);
+        lru.lex(a); // a is now more recently used than b
+        ok &= lru.weight() == 2 * weight && lru.evictions() == 0;
+        lru.lex(c);
+        ok &= lru.size() == 2 && lru.weight() == 2 * weight && lru.evictions() == 1
+            && lru.lex(a) == result_a && lru.misses() == 3;
+        lru.lex(b);
+        ok &= lru.misses() == 4 && lru.evictions() == 2;
+
+        lru.clear();
+        ok &= lru.size() == 0 && lru.weight() == 0;
+
+        if (!ok) {
+            System.err.println("lex cache mismatch: " + cache.hits() + " hits, " + lru.misses()
+                + " misses, " + lru.evictions() + " evictions, " + lru.weight() + " bytes");
+            System.exit(1);
+        }
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Checks that {@link OffHeapTokens} over a temporary file returns the same tokens as {@link
+     * Lexer#lex}, whether they are stored in direct memory or in a backing file, including across
+     * chunks of the store.
+     *
+     * Exits on failure.
+     */
+    private static void check_off_heap()
+    {
+        boolean ok = true;
+        Path dir = null;
+
+        try {
+            dir = Files.createTempDirectory("lex-off-heap");
+            String str = Corpus.generate(Corpus.Profile.TYPICAL, 2, 16 << 20);
+            Path source = dir.resolve("input.txt");
+            byte[] bytes = str.substring(0, str.length() - 1).getBytes(StandardCharsets.ISO_8859_1);
+            Files.write(source, bytes);
+            Token[] tokens = Lexer.lex(str);
+            ok = tokens.length > 1 << 20; // more than one chunk
+
+            for (Path backing: new Path[] { null, dir.resolve("tokens.bin") }) {
+                try (OffHeapTokens off_heap = OffHeapTokens.lex(source, backing)) {
+                    ok &= off_heap.size() == tokens.length;
+                    for (int i = 0; ok && i < tokens.length; ++ i)
+                        ok = equals(tokens[i], off_heap.token(i));
+                }
+            }
+        }
+        catch (IOException e) {
+            e.printStackTrace();
+            ok = false;
+        }
+        finally {
+            if (dir != null) delete(dir);
+        }
+
+        if (!ok) {
+            System.err.println("off-heap tokens mismatch");
+            System.exit(1);
+        }
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Checks that {@link LexClient} returns the same tokens as {@link Lexer#lex}, whether the
+     * inputs are lexed by a {@link LexServer} or in-process after the server is closed.
+     *
+     * Exits on failure.
+     */
+    private static void check_server()
+    {
+        String[] codes = { generate_input(20).str, generate_input(20).str, "\0" };
+        boolean equal = true;
+
+        try (LexClient client = new LexClient(0))
+        {
+            LexServer server = new LexServer(0, 1 << 20);
+            TokenSequence[] remote;
+            try (LexClient connected = new LexClient(server.port())) {
+                remote = connected.lex(codes);
+                equal = connected.connected();
+            }
+            server.close();
+            TokenSequence[] local = client.lex(codes);
+            equal &= !client.connected();
+
+            for (int i = 0; i < codes.length; ++ i) {
+                Token[] tokens = Lexer.lex(codes[i]);
+                Token[] a = remote[i].to_array();
+                Token[] b = local[i].to_array();
+                equal &= a.length == tokens.length && b.length == tokens.length;
+                for (int j = 0; equal && j < tokens.length; ++ j)
+                    equal = equals(tokens[j], a[j]) && equals(tokens[j], b[j]);
+            }
+        }
+        catch (IOException e) {
+            e.printStackTrace();
+            equal = false;
+        }
+
+        if (!equal) {
+            System.err.println("server mismatch");
+            System.exit(1);
+        }
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Checks that {@link DiskCache} returns the same tokens as {@link Lexer#lex} on misses and
+     * hits, ignores corrupted entries, and evicts entries to stay within its capacity.
+     *
+     * Exits on failure.
+     */
+    private static void check_disk_cache()
+    {
+        boolean ok;
+        Path dir = null;
+
+        try {
+            dir = Files.createTempDirectory("lex-cache");
+            String str = generate_input(20).str;
+            char[] src = str.substring(0, str.length() - 1).toCharArray();
+            Token[] tokens = Lexer.lex(src, 0, src.length);
+
+            Path[] files = new Path[8];
+            for (int i = 0; i < files.length; ++ i)
+                files[i] = Files.write(dir.resolve("input" + i),
+                    new String(src).getBytes(StandardCharsets.UTF_8));
+
+            Path entries = dir.resolve("entries");
+            DiskCache cache = new DiskCache(entries, 1 << 20);
+            ok = Tokens.equals(cache.lex(files[0]).to_array(), tokens, true)
+                && Tokens.equals(cache.lex(files[0]).to_array(), tokens, true)
+                && cache.misses() == 1 && cache.hits() == 1;
+
+            // corrupted entries are ignored and replaced
+            try (DirectoryStream<Path> stream = Files.newDirectoryStream(entries)) {
+                for (Path entry: stream)
+                    Files.write(entry, Arrays.copyOf(Files.readAllBytes(entry), 12));
+            }
+            ok &= Tokens.equals(cache.lex(files[0]).to_array(), tokens, true)
+                && Tokens.equals(cache.lex(files[0]).to_array(), tokens, true)
+                && cache.misses() == 2 && cache.hits() == 2;
+
+            // all entries have the same size: room for 3 (and a half)
+            long capacity = Files.size(entries.resolve(single(entries))) * 7 / 2;
+            DiskCache small = new DiskCache(dir.resolve("small"), capacity);
+            for (Path file: files)
+                ok &= Tokens.equals(small.lex(file).to_array(), tokens, true);
+            long total = 0;
+            try (DirectoryStream<Path> stream = Files.newDirectoryStream(dir.resolve("small"))) {
+                for (Path entry: stream) total += Files.size(entry);
+            }
+            ok &= small.evictions() == files.length - 3 && total <= capacity;
+        }
+        catch (IOException e) {
+            e.printStackTrace();
+            ok = false;
+        }
+        finally {
+            delete(dir);
+        }
+
+        if (!ok) {
+            System.err.println("disk cache mismatch");
+            System.exit(1);
+        }
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Returns the name of the only file in {@code dir}.
+     */
+    private static Path single (Path dir) throws IOException
+    {
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(dir)) {
+            return stream.iterator().next().getFileName();
+        }
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Deletes {@code path} and its content, if not null.
+     */
+    private static void delete (Path path)
+    {
+        if (path == null) return;
+        try (Stream<Path> paths = Files.walk(path)) {
+            paths.sorted(Comparator.reverseOrder()).forEach(p -> p.toFile().delete());
+        }
+        catch (IOException e) {
+            // leave it to the OS
+        }
     }
 
     // ---------------------------------------------------------------------------------------------
 
     /**
-     * Repeatedly calls `test()` to perform random testing of the lexer. Runs forever until
-     * stopped by the user.
+     * First runs the one-shot checks (int literals, metrics, cloning, caches, off-heap tokens,
+     * dialects and the server), each of which exits on failure. Then repeatedly calls `test()` to
+     * perform random testing of the lexer. Runs forever until stopped by the user.
      */
     public static void main (String[] args)
     {
+        check_int_literals();
+        check_metrics();
+        check_clone();
+        check_lex_cache();
+        check_off_heap();
+        check_script_dialect();
+        check_server();
+        check_disk_cache();
         while (true) test(20);
     }
 